@@ -0,0 +1,50 @@
+package com.phokingfabulous;
+
+import com.google.gson.JsonObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** ApiClient calls, including the JSON parsing each one does on the response. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ApiClientBenchmark {
+    @State(Scope.Thread)
+    public static class Client {
+        ApiClient api;
+
+        @Setup(Level.Trial)
+        public void connect(ServerState s) {
+            api = new ApiClient(s.base);
+        }
+    }
+
+    @Benchmark
+    public List<InventoryItem> catalogFull(ServerState s) throws Exception {
+        return new ApiClient(s.base).listItems();
+    }
+
+    @Benchmark
+    public List<InventoryItem> catalogUnchanged(Client c) throws Exception {
+        return c.api.listItems();
+    }
+
+    @Benchmark
+    public List<JsonObject> ordersPage(ServerState s, Client c) throws Exception {
+        return c.api.listOrdersByDate(s.day, null, 100);
+    }
+
+    @Benchmark
+    public List<JsonObject> salesRange(ServerState s, Client c) throws Exception {
+        return c.api.getSalesRange(s.month + "-01", s.day, "day");
+    }
+
+    @Benchmark
+    public JsonObject employeeSummary(ServerState s, Client c) throws Exception {
+        return c.api.getEmployeeSummary(s.employeeId, s.month);
+    }
+}
@@ -0,0 +1,42 @@
+package com.phokingfabulous;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Base64;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/** Per-request token checks: SessionStore lookup with 10k live sessions, and signed-token verify. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AuthBenchmark {
+    private String[] sessions;
+    private String signed;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        System.setProperty("phoking.token.keys", "bench:" + Base64.getEncoder().encodeToString(new byte[32]));
+        sessions = new String[10_000];
+        for (int i = 0; i < sessions.length; i++) sessions[i] = SessionStore.create(i);
+        signed = TokenSigner.sign(42, "cashier");
+    }
+
+    @Benchmark
+    public Integer sessionLookup() {
+        return SessionStore.lookup(sessions[ThreadLocalRandom.current().nextInt(sessions.length)]);
+    }
+
+    @Benchmark
+    public TokenSigner.Claims signedVerify() {
+        return TokenSigner.verify(signed);
+    }
+
+    @Benchmark
+    public String signedIssue() {
+        return TokenSigner.sign(42, "cashier");
+    }
+}
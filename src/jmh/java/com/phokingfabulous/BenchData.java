@@ -0,0 +1,72 @@
+package com.phokingfabulous;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Seeded benchmark databases, one file per order count under {@code phoking.bench.dir}. A file
+ * is generated once with set-based INSERTs and reused by every later run, so only the first
+ * run at 10M orders pays for seeding.
+ */
+final class BenchData {
+    static final int CASHIERS = 20;
+    static final int ITEMS = 200;
+    static final int DAYS = 730;
+
+    private BenchData() {
+    }
+
+    /** Points Database at the database for {@code orders} orders, seeding it first if needed. */
+    static void use(int orders) throws SQLException {
+        Path dir = Paths.get(System.getProperty("phoking.bench.dir", "build/jmh-data"));
+        Path file = dir.resolve("orders-" + orders + ".db");
+        System.setProperty("phoking.db", file.toString());
+        if (Files.exists(file)) {
+            Database.init(); // picks up schema migrations added since the file was seeded
+            return;
+        }
+        try {
+            Files.createDirectories(dir);
+        } catch (java.io.IOException e) {
+            throw new SQLException(e);
+        }
+        Database.init();
+        seed(orders);
+    }
+
+    private static void seed(int orders) throws SQLException {
+        long end = System.currentTimeMillis() / 1000;
+        long start = end - DAYS * 86_400L;
+        try (Connection c = Database.get(); Statement st = c.createStatement()) {
+            c.setAutoCommit(false);
+            st.executeUpdate("WITH RECURSIVE n(i) AS (SELECT 1 UNION ALL SELECT i+1 FROM n WHERE i < " + CASHIERS + ") " +
+                    "INSERT INTO users(username,password_hash,role) SELECT 'cashier' || i, 'x', 'cashier' FROM n");
+            st.executeUpdate("WITH RECURSIVE n(i) AS (SELECT 1 UNION ALL SELECT i+1 FROM n WHERE i < " + ITEMS + ") " +
+                    "INSERT INTO menu_items(name,price,stock) SELECT 'Item ' || i, 20 + (i % 40) * 5, 1000000000 FROM n");
+            try (PreparedStatement ps = c.prepareStatement(
+                    "WITH RECURSIVE n(i) AS (SELECT 1 UNION ALL SELECT i+1 FROM n WHERE i < ?) " +
+                            "INSERT INTO orders(cashier_id,total,created_at,created_epoch) " +
+                            "SELECT 1 + abs(random()) % ?, 0, strftime('%Y-%m-%dT%H:%M:%S', e, 'unixepoch', 'localtime'), e " +
+                            "FROM (SELECT ? + i * ? / ? AS e FROM n)")) {
+                ps.setInt(1, orders);
+                ps.setInt(2, CASHIERS);
+                ps.setLong(3, start);
+                ps.setLong(4, end - start);
+                ps.setInt(5, orders);
+                ps.executeUpdate();
+            }
+            st.executeUpdate("INSERT INTO order_items(order_id,menu_item_id,quantity,price) " +
+                    "SELECT o.id, m.id, 1 + abs(random()) % 3, m.price FROM orders o " +
+                    "JOIN menu_items m ON m.id IN (1 + o.id % " + ITEMS + ", 1 + (o.id * 7) % " + ITEMS + ")");
+            st.executeUpdate("UPDATE orders SET total = (SELECT SUM(quantity * price) FROM order_items WHERE order_id = orders.id)");
+            StockLedger.adoptStoredStock(c);
+            c.commit();
+        }
+        Rollups.rebuild();
+    }
+}
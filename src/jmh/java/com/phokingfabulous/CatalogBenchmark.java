@@ -0,0 +1,30 @@
+package com.phokingfabulous;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/** GET /inventory/items serialization: a fresh snapshot after a write, and the shared one. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CatalogBenchmark {
+    @Setup(Level.Trial)
+    public void seed() throws Exception {
+        BenchData.use(10_000);
+    }
+
+    @Benchmark
+    public byte[] rebuildAfterWrite() throws Exception {
+        Catalog.invalidate();
+        return Catalog.current().json;
+    }
+
+    @Benchmark
+    public byte[] cachedSnapshot() throws Exception {
+        return Catalog.current().json;
+    }
+}
@@ -0,0 +1,81 @@
+package com.phokingfabulous;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.Connection;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/** The /orders transaction without HTTP: validate, reserve stock, price, insert, roll up, commit. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CheckoutBenchmark {
+    @Param({"10000", "1000000", "10000000"})
+    public int orders;
+
+    @Setup(Level.Trial)
+    public void seed() throws Exception {
+        BenchData.use(orders);
+        StockLedger.start();
+    }
+
+    @Benchmark
+    public int placeOrder() throws Exception {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        List<Checkout.Line> requested = new ArrayList<>();
+        for (int i = 0; i < 3; i++) requested.add(new Checkout.Line(1 + rnd.nextInt(BenchData.ITEMS), 1 + rnd.nextInt(3)));
+        List<Checkout.Line> lines = Checkout.lines(requested);
+        StockLedger.Reservation stock = StockLedger.reserve(lines);
+        try (Connection c = Database.get()) {
+            double total = Checkout.price(c, lines);
+            c.setAutoCommit(false);
+            int id = Checkout.write(c, 1 + rnd.nextInt(BenchData.CASHIERS), lines, total);
+            c.commit();
+            c.setAutoCommit(true);
+            stock.commit();
+            return id;
+        } finally {
+            stock.release();
+        }
+    }
+
+    /** Eight terminals at once, each committing its own transaction as /orders used to. */
+    @Benchmark
+    @Threads(8)
+    public int placeOrderConcurrent() throws Exception {
+        return placeOrder();
+    }
+
+    /** The same eight terminals handing their orders to OrderWriter, as /orders does now. */
+    @Benchmark
+    @Threads(8)
+    public int placeOrderGrouped() throws Exception {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        Json.OrderRequest order = new Json.OrderRequest();
+        for (int i = 0; i < 3; i++) order.items.add(new Checkout.Line(1 + rnd.nextInt(BenchData.ITEMS), 1 + rnd.nextInt(3)));
+        List<Checkout.Line> lines = Checkout.lines(order.items);
+        StockLedger.Reservation stock = StockLedger.reserve(lines);
+        try {
+            return OrderWriter.place(1 + rnd.nextInt(BenchData.CASHIERS), order, lines, LocalDateTime.now(), stock).result().orderId();
+        } finally {
+            stock.release();
+        }
+    }
+
+    @Benchmark
+    public double priceOnly() throws Exception {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        List<Checkout.Line> requested = new ArrayList<>();
+        for (int i = 0; i < 3; i++) requested.add(new Checkout.Line(1 + rnd.nextInt(BenchData.ITEMS), 1));
+        try (Connection c = Database.get()) {
+            return Checkout.price(c, Checkout.lines(requested));
+        }
+    }
+}
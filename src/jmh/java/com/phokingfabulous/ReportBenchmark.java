@@ -0,0 +1,48 @@
+package com.phokingfabulous;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/** Every report endpoint, end to end over HTTP: query, serialization and routing. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReportBenchmark {
+    @Benchmark
+    public String dailySales(ServerState s) throws Exception {
+        return s.get("/reports/sales/daily?date=" + s.day);
+    }
+
+    @Benchmark
+    public String monthlySales(ServerState s) throws Exception {
+        return s.get("/reports/sales/monthly?month=" + s.month);
+    }
+
+    @Benchmark
+    public String ordersForDay(ServerState s) throws Exception {
+        return s.get("/reports/orders?date=" + s.day + "&limit=100");
+    }
+
+    @Benchmark
+    public String hourlyRangeOneDay(ServerState s) throws Exception {
+        return s.get("/reports/sales/range?from=" + s.day + "&to=" + s.day + "&granularity=hour");
+    }
+
+    @Benchmark
+    public String weeklyRangeOneYear(ServerState s) throws Exception {
+        return s.get("/reports/sales/range?from=" + s.day.substring(0, 4) + "-01-01&to=" + s.day + "&granularity=week");
+    }
+
+    @Benchmark
+    public String employeeSummary(ServerState s) throws Exception {
+        return s.get("/employees/" + s.employeeId + "/summary?month=" + s.month);
+    }
+
+    @Benchmark
+    public String employeeOrdersPage(ServerState s) throws Exception {
+        return s.get("/employees/" + s.employeeId + "/orders?limit=100");
+    }
+}
@@ -0,0 +1,62 @@
+package com.phokingfabulous;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.LocalDate;
+
+/** An in-process BackendServer over a seeded database, shared by the HTTP-level benchmarks. */
+@State(Scope.Benchmark)
+public class ServerState {
+    static final int PORT = 4599;
+
+    @Param({"10000", "1000000", "10000000"})
+    public int orders;
+
+    final HttpClient http = HttpClient.newHttpClient();
+    final String base = "http://localhost:" + PORT;
+    String day;
+    String month;
+    int employeeId;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        BenchData.use(orders);
+        System.setProperty("phoking.server.port", String.valueOf(PORT));
+        BackendServer.start();
+        spark.Spark.awaitInitialization();
+        LocalDate yesterday = LocalDate.now().minusDays(1);
+        day = yesterday.toString();
+        month = yesterday.toString().substring(0, 7);
+        employeeId = ensureEmployee();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        spark.Spark.stop();
+        spark.Spark.awaitStop();
+    }
+
+    String get(String path) throws Exception {
+        HttpResponse<String> res = http.send(HttpRequest.newBuilder(URI.create(base + path)).GET().build(), HttpResponse.BodyHandlers.ofString());
+        if (res.statusCode() != 200) throw new IllegalStateException(path + " -> " + res.statusCode());
+        return res.body();
+    }
+
+    private int ensureEmployee() throws Exception {
+        try (var c = Database.get(); var ps = c.prepareStatement("SELECT id FROM employees WHERE user_id=1")) {
+            var rs = ps.executeQuery();
+            if (rs.next()) return rs.getInt(1);
+        }
+        try (var c = Database.get(); var ps = c.prepareStatement(
+                "INSERT INTO employees(user_id,first_name,last_name,weekly_payment) VALUES(1,'Bench','Cashier',0)", java.sql.Statement.RETURN_GENERATED_KEYS)) {
+            ps.executeUpdate();
+            var keys = ps.getGeneratedKeys();
+            keys.next();
+            return keys.getInt(1);
+        }
+    }
+}
@@ -3,143 +3,474 @@ package com.phokingfabulous;
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 
+import java.io.FileNotFoundException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
+/**
+ * HTTP client for the backend. Every call has a {@code ...Async} form built on
+ * {@link HttpClient#sendAsync} that returns straight away, for the JavaFX app; the plain form
+ * blocks in {@link HttpClient#send} and is meant for tools such as LoadDriver. Both share the
+ * request and response handling, and every client in the process shares one small executor.
+ */
 public class ApiClient {
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+            Integer.getInteger("phoking.client.threads", 2), new ThreadFactory() {
+        private final AtomicInteger n = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "api-client-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
     private final String baseUrl;
-    private final HttpClient http = HttpClient.newHttpClient();
+    private final HttpClient http = HttpClient.newBuilder().executor(EXECUTOR).build();
     private final Gson gson = new Gson();
-    private String token;
+    private volatile Session session;
+    private final Map<Integer, InventoryItem> catalog = new TreeMap<>();
+    private String catalogTag;
+    private String catalogModified;
+    private CompletableFuture<List<InventoryItem>> catalogLoad;
 
     public ApiClient(String baseUrl) {
         this.baseUrl = baseUrl;
     }
 
+    /** Absolute URL for a server-relative path such as an employee's thumb_url. */
+    public String url(String path) {
+        return baseUrl + path;
+    }
+
+    /** Who is logged in at this till and their bearer token. */
+    public record Session(String username, String token) {
+    }
+
+    /** The current login, or null. */
+    public Session session() {
+        return session;
+    }
+
     public String getToken() {
-        return token;
+        Session s = session;
+        return s == null ? null : s.token();
+    }
+
+    private <T> T call(HttpRequest req, Function<HttpResponse<String>, T> parse) throws Exception {
+        return parse.apply(http.send(req, HttpResponse.BodyHandlers.ofString()));
+    }
+
+    private <T> CompletableFuture<T> callAsync(HttpRequest req, Function<HttpResponse<String>, T> parse) {
+        return http.sendAsync(req, HttpResponse.BodyHandlers.ofString()).thenApply(parse);
+    }
+
+    private HttpRequest get(String path) {
+        return HttpRequest.newBuilder(URI.create(baseUrl + path)).GET().build();
+    }
+
+    private HttpRequest.Builder json(String path, Object body) {
+        return HttpRequest.newBuilder(URI.create(baseUrl + path))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(gson.toJson(body), StandardCharsets.UTF_8));
+    }
+
+    private String auth() {
+        String token = getToken();
+        return token == null ? "" : token;
+    }
+
+    private JsonObject objectIf(HttpResponse<String> res, int status) {
+        return res.statusCode() == status ? gson.fromJson(res.body(), JsonObject.class) : null;
+    }
+
+    private boolean ok(HttpResponse<String> res) {
+        return res.statusCode() == 200;
     }
 
     public boolean login(String username, String password) throws Exception {
+        return call(loginRequest(username, password), res -> acceptLogin(username, res));
+    }
+
+    public CompletableFuture<Boolean> loginAsync(String username, String password) {
+        return callAsync(loginRequest(username, password), res -> acceptLogin(username, res));
+    }
+
+    private HttpRequest loginRequest(String username, String password) {
         JsonObject body = new JsonObject();
         body.addProperty("username", username);
         body.addProperty("password", password);
-        HttpRequest req = HttpRequest.newBuilder(URI.create(baseUrl + "/auth/login"))
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(gson.toJson(body), StandardCharsets.UTF_8))
+        return json("/auth/login", body).build();
+    }
+
+    private boolean acceptLogin(String username, HttpResponse<String> res) {
+        if (res.statusCode() != 200) return false;
+        session = new Session(username, gson.fromJson(res.body(), JsonObject.class).get("token").getAsString());
+        return true;
+    }
+
+    public boolean logout() throws Exception {
+        HttpRequest req = logoutRequest();
+        return req != null && call(req, this::ok);
+    }
+
+    public CompletableFuture<Boolean> logoutAsync() {
+        HttpRequest req = logoutRequest();
+        return req == null ? CompletableFuture.completedFuture(false) : callAsync(req, this::ok);
+    }
+
+    private HttpRequest logoutRequest() {
+        String current = getToken();
+        if (current == null) return null;
+        session = null;
+        return HttpRequest.newBuilder(URI.create(baseUrl + "/auth/logout"))
+                .header("Authorization", current)
+                .POST(HttpRequest.BodyPublishers.noBody())
                 .build();
-        HttpResponse<String> res = http.send(req, HttpResponse.BodyHandlers.ofString());
+    }
+
+    public List<InventoryItem> listItems() throws Exception {
+        if (call(catalogRequest(), this::applyCatalog)) return listItems();
+        return cachedItems();
+    }
+
+    /** The menu as last fetched or streamed, without asking the server. */
+    public synchronized List<InventoryItem> cachedItems() {
+        return new ArrayList<>(catalog.values());
+    }
+
+    /**
+     * The menu, kept in sync with the server through conditional delta requests. Calls made
+     * while a refresh is already in flight share that refresh (and its result list).
+     */
+    public synchronized CompletableFuture<List<InventoryItem>> listItemsAsync() {
+        if (catalogLoad == null || catalogLoad.isDone()) catalogLoad = refreshCatalog();
+        return catalogLoad;
+    }
+
+    private CompletableFuture<List<InventoryItem>> refreshCatalog() {
+        return callAsync(catalogRequest(), this::applyCatalog).thenCompose(retry -> {
+            synchronized (this) {
+                return retry ? refreshCatalog() : CompletableFuture.completedFuture(new ArrayList<>(catalog.values()));
+            }
+        });
+    }
+
+    private synchronized HttpRequest catalogRequest() {
+        if (catalogTag == null) return get("/inventory/items");
+        String since = catalogTag.replace("\"", "");
+        HttpRequest.Builder b = HttpRequest.newBuilder(URI.create(baseUrl + "/inventory/items/changes?since=" + since))
+                .header("If-None-Match", catalogTag);
+        if (catalogModified != null) b.header("If-Modified-Since", catalogModified);
+        return b.GET().build();
+    }
+
+    /** Applies a full list or a delta to the local copy; true when the delta was refused and a full reload is due. */
+    private synchronized boolean applyCatalog(HttpResponse<String> res) {
+        if (!res.request().uri().getPath().endsWith("/changes")) {
+            if (res.statusCode() != 200 || behind(res)) return false;
+            replaceCatalog(gson.fromJson(res.body(), JsonArray.class));
+            rememberValidators(res);
+            return false;
+        }
         if (res.statusCode() == 200) {
-            JsonObject obj = gson.fromJson(res.body(), JsonObject.class);
-            token = obj.get("token").getAsString();
+            if (behind(res)) return false;
+            JsonObject delta = gson.fromJson(res.body(), JsonObject.class);
+            if (delta.get("full").getAsBoolean()) {
+                replaceCatalog(delta.getAsJsonArray("items"));
+            } else {
+                for (var el : delta.getAsJsonArray("changed")) {
+                    InventoryItem it = toItem(el.getAsJsonObject());
+                    catalog.put(it.id, it);
+                }
+                for (var el : delta.getAsJsonArray("deleted")) catalog.remove(el.getAsInt());
+            }
+            rememberValidators(res);
+        } else if (res.statusCode() != 304) {
+            catalogTag = null;
+            catalogModified = null;
             return true;
         }
         return false;
     }
 
-    public List<InventoryItem> listItems() throws Exception {
-        HttpRequest req = HttpRequest.newBuilder(URI.create(baseUrl + "/inventory/items")).GET().build();
-        HttpResponse<String> res = http.send(req, HttpResponse.BodyHandlers.ofString());
-        List<InventoryItem> list = new ArrayList<>();
-        if (res.statusCode() == 200) {
-            JsonArray arr = gson.fromJson(res.body(), JsonArray.class);
-            for (var el : arr) {
+    private void replaceCatalog(JsonArray arr) {
+        catalog.clear();
+        for (var el : arr) {
+            InventoryItem it = toItem(el.getAsJsonObject());
+            catalog.put(it.id, it);
+        }
+    }
+
+    private void rememberValidators(HttpResponse<?> res) {
+        catalogTag = res.headers().firstValue("ETag").orElse(null);
+        catalogModified = res.headers().firstValue("Last-Modified").orElse(null);
+    }
+
+    /** True when a response is for an older version than the stream has already applied. */
+    private boolean behind(HttpResponse<?> res) {
+        String tag = res.headers().firstValue("ETag").orElse(null);
+        if (tag == null || catalogTag == null) return false;
+        String theirs = tag.replace("\"", "");
+        String ours = catalogTag.replace("\"", "");
+        int a = theirs.lastIndexOf('-');
+        int b = ours.lastIndexOf('-');
+        if (a < 0 || b < 0 || !theirs.substring(0, a).equals(ours.substring(0, b))) return false;
+        try {
+            return Long.parseLong(theirs.substring(a + 1)) < Long.parseLong(ours.substring(b + 1));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Opens GET /inventory/stream, resuming after the menu version this client already holds.
+     * Blocks until the server answers; the lines then run until either side closes them.
+     */
+    public HttpResponse<Stream<String>> openInventoryStream() throws Exception {
+        HttpRequest.Builder b = HttpRequest.newBuilder(URI.create(baseUrl + "/inventory/stream"))
+                .header("Accept", "text/event-stream");
+        synchronized (this) {
+            if (catalogTag != null) b.header("Last-Event-ID", catalogTag.replace("\"", ""));
+        }
+        return http.send(b.GET().build(), HttpResponse.BodyHandlers.ofLines());
+    }
+
+    /**
+     * Applies one stream event to the local menu. Returns the rows it touched by id, null for a
+     * deleted item, or null instead of a map when a {@code reset} replaced the whole menu.
+     */
+    public synchronized Map<Integer, InventoryItem> applyCatalogEvent(String type, String id, String data) {
+        Map<Integer, InventoryItem> touched = new LinkedHashMap<>();
+        if (type.equals("reset")) {
+            replaceCatalog(gson.fromJson(data, JsonArray.class));
+            touched = null;
+        } else if (type.equals("items")) {
+            JsonObject delta = gson.fromJson(data, JsonObject.class);
+            for (var el : delta.getAsJsonArray("items")) {
                 JsonObject o = el.getAsJsonObject();
-                list.add(new InventoryItem(
-                        o.get("id").getAsInt(),
-                        o.get("name").getAsString(),
-                        o.get("price").getAsDouble(),
-                        o.get("stock").getAsInt()
-                ));
+                int itemId = o.get("id").getAsInt();
+                InventoryItem old = catalog.get(itemId);
+                if (old == null && !o.has("name")) continue; // only partial news of a row we never had
+                InventoryItem it = new InventoryItem(itemId,
+                        o.has("name") ? o.get("name").getAsString() : old.name,
+                        o.has("price") ? o.get("price").getAsDouble() : old.price,
+                        o.has("stock") ? o.get("stock").getAsInt() : old.stock);
+                catalog.put(itemId, it);
+                touched.put(itemId, it);
             }
+            for (var el : delta.getAsJsonArray("deleted")) {
+                catalog.remove(el.getAsInt());
+                touched.put(el.getAsInt(), null);
+            }
+        } else {
+            return touched;
         }
-        return list;
+        catalogTag = "\"" + id + "\"";
+        catalogModified = null;
+        return touched;
     }
 
-    public Integer createItem(String name, double price, int stock) throws Exception {
+    private InventoryItem toItem(JsonObject o) {
+        return new InventoryItem(
+                o.get("id").getAsInt(),
+                o.get("name").getAsString(),
+                o.get("price").getAsDouble(),
+                o.get("stock").getAsInt()
+        );
+    }
+
+    private String itemBody(String name, double price, int stock) {
         JsonObject body = new JsonObject();
         body.addProperty("name", name);
         body.addProperty("price", price);
         body.addProperty("stock", stock);
-        HttpRequest req = HttpRequest.newBuilder(URI.create(baseUrl + "/inventory/items"))
+        return gson.toJson(body);
+    }
+
+    public Integer createItem(String name, double price, int stock) throws Exception {
+        return call(createItemRequest(name, price, stock), this::createdId);
+    }
+
+    public CompletableFuture<Integer> createItemAsync(String name, double price, int stock) {
+        return callAsync(createItemRequest(name, price, stock), this::createdId);
+    }
+
+    private HttpRequest createItemRequest(String name, double price, int stock) {
+        return HttpRequest.newBuilder(URI.create(baseUrl + "/inventory/items"))
                 .header("Content-Type", "application/json")
-                .header("Authorization", token == null ? "" : token)
-                .POST(HttpRequest.BodyPublishers.ofString(gson.toJson(body), StandardCharsets.UTF_8))
+                .header("Authorization", auth())
+                .POST(HttpRequest.BodyPublishers.ofString(itemBody(name, price, stock), StandardCharsets.UTF_8))
                 .build();
-        HttpResponse<String> res = http.send(req, HttpResponse.BodyHandlers.ofString());
-        if (res.statusCode() == 201) {
-            JsonObject obj = gson.fromJson(res.body(), JsonObject.class);
-            return obj.get("id").getAsInt();
-        }
-        return null;
+    }
+
+    private Integer createdId(HttpResponse<String> res) {
+        JsonObject obj = objectIf(res, 201);
+        return obj == null ? null : obj.get("id").getAsInt();
     }
 
     public boolean updateItem(int id, String name, double price, int stock) throws Exception {
-        JsonObject body = new JsonObject();
-        body.addProperty("name", name);
-        body.addProperty("price", price);
-        body.addProperty("stock", stock);
-        HttpRequest req = HttpRequest.newBuilder(URI.create(baseUrl + "/inventory/items/" + id))
+        return call(updateItemRequest(id, name, price, stock), this::ok);
+    }
+
+    public CompletableFuture<Boolean> updateItemAsync(int id, String name, double price, int stock) {
+        return callAsync(updateItemRequest(id, name, price, stock), this::ok);
+    }
+
+    private HttpRequest updateItemRequest(int id, String name, double price, int stock) {
+        return HttpRequest.newBuilder(URI.create(baseUrl + "/inventory/items/" + id))
                 .header("Content-Type", "application/json")
-                .header("Authorization", token == null ? "" : token)
-                .PUT(HttpRequest.BodyPublishers.ofString(gson.toJson(body), StandardCharsets.UTF_8))
+                .header("Authorization", auth())
+                .PUT(HttpRequest.BodyPublishers.ofString(itemBody(name, price, stock), StandardCharsets.UTF_8))
                 .build();
-        HttpResponse<String> res = http.send(req, HttpResponse.BodyHandlers.ofString());
-        return res.statusCode() == 200;
     }
 
     public boolean deleteItem(int id) throws Exception {
-        HttpRequest req = HttpRequest.newBuilder(URI.create(baseUrl + "/inventory/items/" + id))
-                .header("Authorization", token == null ? "" : token)
+        return call(deleteItemRequest(id), this::ok);
+    }
+
+    public CompletableFuture<Boolean> deleteItemAsync(int id) {
+        return callAsync(deleteItemRequest(id), this::ok);
+    }
+
+    private HttpRequest deleteItemRequest(int id) {
+        return HttpRequest.newBuilder(URI.create(baseUrl + "/inventory/items/" + id))
+                .header("Authorization", auth())
                 .DELETE()
                 .build();
-        HttpResponse<String> res = http.send(req, HttpResponse.BodyHandlers.ofString());
-        return res.statusCode() == 200;
     }
 
     public double getDaily(String date) throws Exception {
-        HttpRequest req = HttpRequest.newBuilder(URI.create(baseUrl + "/reports/sales/daily?date=" + date)).GET().build();
-        HttpResponse<String> res = http.send(req, HttpResponse.BodyHandlers.ofString());
-        if (res.statusCode() == 200) {
-            JsonObject obj = gson.fromJson(res.body(), JsonObject.class);
-            return obj.get("revenue").getAsDouble();
-        }
-        return 0.0;
+        return call(get("/reports/sales/daily?date=" + date), this::revenue);
+    }
+
+    public CompletableFuture<Double> getDailyAsync(String date) {
+        return callAsync(get("/reports/sales/daily?date=" + date), this::revenue);
     }
 
     public double getMonthly(String month) throws Exception {
-        HttpRequest req = HttpRequest.newBuilder(URI.create(baseUrl + "/reports/sales/monthly?month=" + month)).GET().build();
-        HttpResponse<String> res = http.send(req, HttpResponse.BodyHandlers.ofString());
-        if (res.statusCode() == 200) {
-            JsonObject obj = gson.fromJson(res.body(), JsonObject.class);
-            return obj.get("revenue").getAsDouble();
+        return call(get("/reports/sales/monthly?month=" + month), this::revenue);
+    }
+
+    public CompletableFuture<Double> getMonthlyAsync(String month) {
+        return callAsync(get("/reports/sales/monthly?month=" + month), this::revenue);
+    }
+
+    /**
+     * Status of a GET whose body the caller does not read, as when LoadDriver times a report. The
+     * typed getters above turn a failed reply into zero or an empty list, which hides it.
+     */
+    public int status(String path) throws Exception {
+        return call(get(path), HttpResponse::statusCode);
+    }
+
+    private double revenue(HttpResponse<String> res) {
+        JsonObject obj = objectIf(res, 200);
+        return obj == null ? 0.0 : obj.get("revenue").getAsDouble();
+    }
+
+    public List<JsonObject> getSalesRange(String from, String to, String granularity) throws Exception {
+        return call(salesRangeRequest(from, to, granularity), this::buckets);
+    }
+
+    public CompletableFuture<List<JsonObject>> getSalesRangeAsync(String from, String to, String granularity) {
+        return callAsync(salesRangeRequest(from, to, granularity), this::buckets);
+    }
+
+    private HttpRequest salesRangeRequest(String from, String to, String granularity) {
+        return get("/reports/sales/range?from=" + from + "&to=" + to + "&granularity=" + granularity);
+    }
+
+    private List<JsonObject> buckets(HttpResponse<String> res) {
+        List<JsonObject> list = new ArrayList<>();
+        JsonObject obj = objectIf(res, 200);
+        if (obj != null) {
+            for (var el : obj.getAsJsonArray("buckets")) list.add(el.getAsJsonObject());
         }
-        return 0.0;
+        return list;
     }
 
-    public JsonObject createEmployee(JsonObject emp, byte[] photo) throws Exception {
-        if (photo != null) {
-            String b64 = java.util.Base64.getEncoder().encodeToString(photo);
-            emp.addProperty("photoBase64", b64);
+    /** Streams an image file to the server and returns its photo id, or null if it was refused. */
+    public String uploadPhoto(Path photo) throws Exception {
+        return call(uploadRequest(photo), this::photoId);
+    }
+
+    public CompletableFuture<String> uploadPhotoAsync(Path photo) {
+        try {
+            return callAsync(uploadRequest(photo), this::photoId);
+        } catch (FileNotFoundException e) {
+            return CompletableFuture.failedFuture(e);
         }
-        HttpRequest req = HttpRequest.newBuilder(URI.create(baseUrl + "/employees"))
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(gson.toJson(emp), StandardCharsets.UTF_8))
+    }
+
+    private HttpRequest uploadRequest(Path photo) throws FileNotFoundException {
+        String name = photo.getFileName().toString().toLowerCase();
+        return HttpRequest.newBuilder(URI.create(baseUrl + "/uploads/photos"))
+                .header("Authorization", auth())
+                .header("Content-Type", name.endsWith(".png") ? "image/png" : "image/jpeg")
+                .POST(HttpRequest.BodyPublishers.ofFile(photo))
                 .build();
-        HttpResponse<String> res = http.send(req, HttpResponse.BodyHandlers.ofString());
-        if (res.statusCode() == 201) {
-            return gson.fromJson(res.body(), JsonObject.class);
+    }
+
+    private String photoId(HttpResponse<String> res) {
+        JsonObject obj = objectIf(res, 201);
+        return obj == null ? null : obj.get("photo_id").getAsString();
+    }
+
+    public JsonObject createEmployee(JsonObject emp, Path photo) throws Exception {
+        if (photo != null) {
+            String photoId = uploadPhoto(photo);
+            if (photoId == null) return null;
+            emp.addProperty("photoId", photoId);
         }
-        return null;
+        return call(json("/employees", emp).build(), res -> objectIf(res, 201));
+    }
+
+    /** Uploads {@code photo} first when there is one, then registers the employee with its id. */
+    public CompletableFuture<JsonObject> createEmployeeAsync(JsonObject emp, Path photo) {
+        CompletableFuture<String> upload = photo == null ? CompletableFuture.completedFuture(null) : uploadPhotoAsync(photo);
+        return upload.thenCompose(photoId -> {
+            if (photo != null && photoId == null) return CompletableFuture.completedFuture(null);
+            if (photoId != null) emp.addProperty("photoId", photoId);
+            return callAsync(json("/employees", emp).build(), res -> objectIf(res, 201));
+        });
     }
 
     public JsonObject createOrder(List<CartItem> items, double payment, String token) throws Exception {
+        return call(orderRequest(items, payment, token), res -> objectIf(res, 201));
+    }
+
+    public CompletableFuture<JsonObject> createOrderAsync(List<CartItem> items, double payment, String token) {
+        return callAsync(orderRequest(items, payment, token), res -> objectIf(res, 201));
+    }
+
+    private HttpRequest orderRequest(List<CartItem> items, double payment, String token) {
+        return json("/orders", orderBody(items, payment))
+                .header("Authorization", token == null ? "" : token)
+                .build();
+    }
+
+    /** The {@code POST /orders} body for a cart; OrderJournal keeps these until they are uploaded. */
+    public static JsonObject orderBody(List<CartItem> items, double payment) {
         JsonObject body = new JsonObject();
         JsonArray arr = new JsonArray();
         for (CartItem ci : items) {
@@ -152,32 +483,76 @@ public class ApiClient {
         }
         body.add("items", arr);
         body.addProperty("payment", payment);
-        HttpRequest req = HttpRequest.newBuilder(URI.create(baseUrl + "/orders"))
-                .header("Content-Type", "application/json")
-                .header("Authorization", token == null ? "" : token)
-                .POST(HttpRequest.BodyPublishers.ofString(gson.toJson(body), StandardCharsets.UTF_8))
-                .build();
-        HttpResponse<String> res = http.send(req, HttpResponse.BodyHandlers.ofString());
-        if (res.statusCode() == 201) {
-            return gson.fromJson(res.body(), JsonObject.class);
+        return body;
+    }
+
+    /** Status and body of a reply, so the caller can tell a refusal from an outage. */
+    public record Reply(int status, JsonObject body) {
+    }
+
+    /**
+     * Sends many order bodies to {@code /orders/batch} in one request. A 200 or 409 reply carries a
+     * result per order; with {@code allOrNothing} a 409 means none of them were written.
+     */
+    public Reply createOrders(List<JsonObject> orders, boolean allOrNothing, String token) throws Exception {
+        return call(batchRequest(orders, allOrNothing, token), res -> new Reply(res.statusCode(), objectOrNull(res.body())));
+    }
+
+    public CompletableFuture<Reply> createOrdersAsync(List<JsonObject> orders, boolean allOrNothing, String token) {
+        return callAsync(batchRequest(orders, allOrNothing, token), res -> new Reply(res.statusCode(), objectOrNull(res.body())));
+    }
+
+    private HttpRequest batchRequest(List<JsonObject> orders, boolean allOrNothing, String token) {
+        JsonObject body = new JsonObject();
+        body.addProperty("mode", allOrNothing ? "all_or_nothing" : "best_effort");
+        JsonArray arr = new JsonArray();
+        for (JsonObject o : orders) arr.add(o);
+        body.add("orders", arr);
+        return json("/orders/batch", body).header("Authorization", token == null ? "" : token).build();
+    }
+
+    private JsonObject objectOrNull(String body) {
+        try {
+            return gson.fromJson(body, JsonObject.class);
+        } catch (JsonParseException e) {
+            return null;
         }
-        return null;
     }
 
     public List<JsonObject> listOrdersByDate(String date) throws Exception {
-        HttpRequest req = HttpRequest.newBuilder(URI.create(baseUrl + "/reports/orders?date=" + date)).GET().build();
-        HttpResponse<String> res = http.send(req, HttpResponse.BodyHandlers.ofString());
-        List<JsonObject> list = new ArrayList<>();
-        if (res.statusCode() == 200) {
-            JsonArray arr = gson.fromJson(res.body(), JsonArray.class);
-            for (var el : arr) list.add(el.getAsJsonObject());
-        }
-        return list;
+        return call(get("/reports/orders?date=" + date), this::list);
+    }
+
+    public CompletableFuture<List<JsonObject>> listOrdersByDateAsync(String date) {
+        return callAsync(get("/reports/orders?date=" + date), this::list);
+    }
+
+    public List<JsonObject> listOrdersByDate(String date, Integer afterId, int limit) throws Exception {
+        return call(get("/reports/orders?date=" + date + page(afterId, limit)), this::list);
+    }
+
+    public CompletableFuture<List<JsonObject>> listOrdersByDateAsync(String date, Integer afterId, int limit) {
+        return callAsync(get("/reports/orders?date=" + date + page(afterId, limit)), this::list);
     }
 
     public List<JsonObject> listOrdersByEmployee(int empId) throws Exception {
-        HttpRequest req = HttpRequest.newBuilder(URI.create(baseUrl + "/employees/" + empId + "/orders")).GET().build();
-        HttpResponse<String> res = http.send(req, HttpResponse.BodyHandlers.ofString());
+        return call(get("/employees/" + empId + "/orders"), this::list);
+    }
+
+    /** One page of an employee's orders, newest first; pass the last id received to get the next. */
+    public List<JsonObject> listOrdersByEmployee(int empId, Integer afterId, int limit) throws Exception {
+        return call(get("/employees/" + empId + "/orders?" + page(afterId, limit).substring(1)), this::list);
+    }
+
+    public CompletableFuture<List<JsonObject>> listOrdersByEmployeeAsync(int empId, Integer afterId, int limit) {
+        return callAsync(get("/employees/" + empId + "/orders?" + page(afterId, limit).substring(1)), this::list);
+    }
+
+    private String page(Integer afterId, int limit) {
+        return "&limit=" + limit + (afterId == null ? "" : "&after_id=" + afterId);
+    }
+
+    private List<JsonObject> list(HttpResponse<String> res) {
         List<JsonObject> list = new ArrayList<>();
         if (res.statusCode() == 200) {
             JsonArray arr = gson.fromJson(res.body(), JsonArray.class);
@@ -187,20 +562,18 @@ public class ApiClient {
     }
 
     public JsonObject getEmployeeByUsername(String username) throws Exception {
-        HttpRequest req = HttpRequest.newBuilder(URI.create(baseUrl + "/employees/by-username/" + username)).GET().build();
-        HttpResponse<String> res = http.send(req, HttpResponse.BodyHandlers.ofString());
-        if (res.statusCode() == 200) {
-            return gson.fromJson(res.body(), JsonObject.class);
-        }
-        return null;
+        return call(get("/employees/by-username/" + username), res -> objectIf(res, 200));
+    }
+
+    public CompletableFuture<JsonObject> getEmployeeByUsernameAsync(String username) {
+        return callAsync(get("/employees/by-username/" + username), res -> objectIf(res, 200));
     }
 
     public JsonObject getEmployeeSummary(int empId, String month) throws Exception {
-        HttpRequest req = HttpRequest.newBuilder(URI.create(baseUrl + "/employees/" + empId + "/summary?month=" + month)).GET().build();
-        HttpResponse<String> res = http.send(req, HttpResponse.BodyHandlers.ofString());
-        if (res.statusCode() == 200) {
-            return gson.fromJson(res.body(), JsonObject.class);
-        }
-        return null;
+        return call(get("/employees/" + empId + "/summary?month=" + month), res -> objectIf(res, 200));
+    }
+
+    public CompletableFuture<JsonObject> getEmployeeSummaryAsync(int empId, String month) {
+        return callAsync(get("/employees/" + empId + "/summary?month=" + month), res -> objectIf(res, 200));
     }
-}
\ No newline at end of file
+}
@@ -1,11 +1,17 @@
 package com.phokingfabulous;
 
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
+import javafx.scene.Node;
 import javafx.scene.Scene;
+import javafx.scene.chart.BarChart;
+import javafx.scene.chart.CategoryAxis;
+import javafx.scene.chart.NumberAxis;
+import javafx.scene.chart.XYChart;
 import javafx.scene.control.*;
 import javafx.scene.layout.*;
 import javafx.scene.text.Font;
@@ -14,22 +20,39 @@ import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.stage.FileChooser;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.List;
 import java.time.LocalDate;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 public class App extends Application {
     private final ObservableList<CartItem> cart = FXCollections.observableArrayList();
     private final ListView<CartItem> cartView = new ListView<>(cart);
     private final Label totalLabel = new Label("Total: ₱0.00");
     private final ApiClient api = new ApiClient("http://localhost:4567");
-    private GridPane menuGrid;
+    private final Label syncLabel = new Label();
+    private OrderJournal journal;
+    private final MenuList menu = new MenuList();
+    private ListView<InventoryItem> menuList;
+    private InventoryStream inventoryStream;
     private String authStatus = "Not logged in";
 
     @Override
     public void start(Stage stage) {
         stage.setTitle("Pho King Fabulous — JavaFX");
+        try {
+            journal = new OrderJournal(Paths.get(System.getProperty("phoking.journal", "orders.journal")), api);
+        } catch (IOException e) {
+            throw new UncheckedIOException("cannot open the order journal", e);
+        }
+        journal.onChange(() -> Platform.runLater(this::updateSyncLabel));
+        updateSyncLabel();
 
         Label header = new Label("Pho King Fabulous");
         header.setFont(Font.font(24));
@@ -63,6 +86,18 @@ public class App extends Application {
         Scene scene = new Scene(root, 960, 600);
         stage.setScene(scene);
         stage.show();
+
+        inventoryStream = new InventoryStream(api, new InventoryStream.Listener() {
+            @Override
+            public void reset(List<InventoryItem> items) {
+                Platform.runLater(() -> menu.setAll(items));
+            }
+
+            @Override
+            public void changed(Map<Integer, InventoryItem> rows) {
+                Platform.runLater(() -> menu.apply(rows));
+            }
+        });
     }
 
     private VBox buildLoginPane() {
@@ -74,21 +109,23 @@ public class App extends Application {
         PasswordField pass = new PasswordField();
         pass.setPromptText("Password");
         Button loginBtn = new Button("Login");
-        loginBtn.setOnAction(a -> {
-            try {
-                boolean ok = api.login(user.getText(), pass.getText());
-                if (ok) {
-                    authStatus = "Logged in";
-                    status.setText(authStatus);
-                    alert("Login success", Alert.AlertType.INFORMATION);
-                } else {
-                    alert("Login failed", Alert.AlertType.ERROR);
-                }
-            } catch (Exception e) {
-                alert("Network error", Alert.AlertType.ERROR);
+        loginBtn.setOnAction(a -> onFx(api.loginAsync(user.getText(), pass.getText()), ok -> {
+            if (ok) {
+                authStatus = "Logged in";
+                status.setText(authStatus);
+                journal.syncNow();
+                alert("Login success", Alert.AlertType.INFORMATION);
+            } else {
+                alert("Login failed", Alert.AlertType.ERROR);
             }
+        }, "Network error", loginBtn));
+        Button logoutBtn = new Button("Logout");
+        logoutBtn.setOnAction(a -> {
+            api.logoutAsync().exceptionally(e -> false);
+            authStatus = "Not logged in";
+            status.setText(authStatus);
         });
-        box.getChildren().addAll(new Label("Staff Login"), user, pass, loginBtn, status);
+        box.getChildren().addAll(new Label("Staff Login"), user, pass, new HBox(10, loginBtn, logoutBtn), status);
         return box;
     }
 
@@ -119,48 +156,48 @@ public class App extends Application {
         Button refreshBtn = new Button("Refresh");
         form.getChildren().addAll(name, price, stock, addBtn, updateBtn, deleteBtn, refreshBtn);
 
-        refreshBtn.setOnAction(a -> {
-            try {
-                List<InventoryItem> items = api.listItems();
-                table.getItems().setAll(items);
-                if (menuGrid != null) populateMenuGrid(menuGrid);
-            } catch (Exception e) {
-                alert("Load failed", Alert.AlertType.ERROR);
-            }
-        });
+        refreshBtn.setOnAction(a -> onFx(api.listItemsAsync(), items -> {
+            table.getItems().setAll(items);
+            menu.setAll(items);
+        }, "Load failed", refreshBtn));
 
         addBtn.setOnAction(a -> {
+            if (api.getToken() == null) { alert("Login required", Alert.AlertType.WARNING); return; }
+            String n = name.getText();
+            double p;
+            int s;
             try {
-                if (api.getToken() == null) { alert("Login required", Alert.AlertType.WARNING); return; }
-                String n = name.getText();
-                double p = Double.parseDouble(price.getText());
-                int s = Integer.parseInt(stock.getText());
-                Integer id = api.createItem(n, p, s);
-                if (id != null) { refreshBtn.fire(); if (menuGrid != null) populateMenuGrid(menuGrid); alert("Created", Alert.AlertType.INFORMATION); }
-            } catch (Exception e) { alert("Create failed", Alert.AlertType.ERROR); }
+                p = Double.parseDouble(price.getText());
+                s = Integer.parseInt(stock.getText());
+            } catch (NumberFormatException e) { alert("Create failed", Alert.AlertType.ERROR); return; }
+            onFx(api.createItemAsync(n, p, s), id -> {
+                if (id != null) { refreshBtn.fire(); alert("Created", Alert.AlertType.INFORMATION); }
+            }, "Create failed", addBtn);
         });
 
         updateBtn.setOnAction(a -> {
+            if (api.getToken() == null) { alert("Login required", Alert.AlertType.WARNING); return; }
+            InventoryItem sel = table.getSelectionModel().getSelectedItem();
+            if (sel == null) return;
+            String n = name.getText().isEmpty() ? sel.name : name.getText();
+            double p;
+            int s;
             try {
-                if (api.getToken() == null) { alert("Login required", Alert.AlertType.WARNING); return; }
-                InventoryItem sel = table.getSelectionModel().getSelectedItem();
-                if (sel == null) return;
-                String n = name.getText().isEmpty() ? sel.name : name.getText();
-                double p = price.getText().isEmpty() ? sel.price : Double.parseDouble(price.getText());
-                int s = stock.getText().isEmpty() ? sel.stock : Integer.parseInt(stock.getText());
-                boolean ok = api.updateItem(sel.id, n, p, s);
-                if (ok) { refreshBtn.fire(); if (menuGrid != null) populateMenuGrid(menuGrid); alert("Updated", Alert.AlertType.INFORMATION); }
-            } catch (Exception e) { alert("Update failed", Alert.AlertType.ERROR); }
+                p = price.getText().isEmpty() ? sel.price : Double.parseDouble(price.getText());
+                s = stock.getText().isEmpty() ? sel.stock : Integer.parseInt(stock.getText());
+            } catch (NumberFormatException e) { alert("Update failed", Alert.AlertType.ERROR); return; }
+            onFx(api.updateItemAsync(sel.id, n, p, s), ok -> {
+                if (ok) { refreshBtn.fire(); alert("Updated", Alert.AlertType.INFORMATION); }
+            }, "Update failed", updateBtn);
         });
 
         deleteBtn.setOnAction(a -> {
-            try {
-                if (api.getToken() == null) { alert("Login required", Alert.AlertType.WARNING); return; }
-                InventoryItem sel = table.getSelectionModel().getSelectedItem();
-                if (sel == null) return;
-                boolean ok = api.deleteItem(sel.id);
-                if (ok) { refreshBtn.fire(); if (menuGrid != null) populateMenuGrid(menuGrid); alert("Deleted", Alert.AlertType.INFORMATION); }
-            } catch (Exception e) { alert("Delete failed", Alert.AlertType.ERROR); }
+            if (api.getToken() == null) { alert("Login required", Alert.AlertType.WARNING); return; }
+            InventoryItem sel = table.getSelectionModel().getSelectedItem();
+            if (sel == null) return;
+            onFx(api.deleteItemAsync(sel.id), ok -> {
+                if (ok) { refreshBtn.fire(); alert("Deleted", Alert.AlertType.INFORMATION); }
+            }, "Delete failed", deleteBtn);
         });
 
         box.getChildren().addAll(new Label("Inventory"), table, form);
@@ -200,38 +237,54 @@ public class App extends Application {
         eTotal.setCellValueFactory(d -> new javafx.beans.property.SimpleDoubleProperty(d.getValue().get("total").getAsDouble()));
         empOrdersTable.getColumns().addAll(eId, eDate, eTotal);
         dailyBtn.setOnAction(a -> {
-            try {
-                double v = api.getDaily(dateField.getText());
-                dailyOut.setText("₱" + format(v));
-                var list = api.listOrdersByDate(dateField.getText());
-                ordersTable.getItems().setAll(list);
-            } catch (Exception e) { alert("Fetch failed", Alert.AlertType.ERROR); }
-        });
-        monthlyBtn.setOnAction(a -> {
-            try { double v = api.getMonthly(monthField.getText()); monthlyOut.setText("₱" + format(v)); }
-            catch (Exception e) { alert("Fetch failed", Alert.AlertType.ERROR); }
+            var daily = api.getDailyAsync(dateField.getText());
+            var orders = api.listOrdersByDateAsync(dateField.getText());
+            onFx(CompletableFuture.allOf(daily, orders), done -> {
+                dailyOut.setText("₱" + format(daily.join()));
+                ordersTable.getItems().setAll(orders.join());
+            }, "Fetch failed", dailyBtn);
         });
+        monthlyBtn.setOnAction(a -> onFx(api.getMonthlyAsync(monthField.getText()),
+                v -> monthlyOut.setText("₱" + format(v)), "Fetch failed", monthlyBtn));
+        TextField rangeFrom = new TextField(LocalDate.now().minusDays(89).toString());
+        TextField rangeTo = new TextField(LocalDate.now().toString());
+        ComboBox<String> granularity = new ComboBox<>(FXCollections.observableArrayList("hour","day","week","month"));
+        granularity.getSelectionModel().select("day");
+        Button trendBtn = new Button("Sales Trend");
+        BarChart<String, Number> trendChart = new BarChart<>(new CategoryAxis(), new NumberAxis());
+        trendChart.setLegendVisible(false);
+        trendChart.setAnimated(false);
+        trendChart.setPrefHeight(220);
+        trendBtn.setOnAction(a -> onFx(api.getSalesRangeAsync(rangeFrom.getText(), rangeTo.getText(), granularity.getValue()), buckets -> {
+            XYChart.Series<String, Number> series = new XYChart.Series<>();
+            for (var b : buckets) series.getData().add(new XYChart.Data<>(b.get("start").getAsString(), b.get("revenue").getAsDouble()));
+            trendChart.getData().setAll(List.of(series));
+        }, "Fetch failed", trendBtn));
         Label empInfo = new Label();
+        ImageView empPhoto = new ImageView();
+        empPhoto.setFitWidth(64); empPhoto.setFitHeight(64); empPhoto.setPreserveRatio(true);
         Label empPay = new Label();
         Label empAttendance = new Label();
 
         empLookupBtn.setOnAction(a -> {
-            try {
-                String uname = empUserField.getText();
-                var emp = api.getEmployeeByUsername(uname);
+            String month = monthField.getText();
+            onFx(api.getEmployeeByUsernameAsync(empUserField.getText()), emp -> {
                 if (emp == null) { alert("Employee not found", Alert.AlertType.WARNING); return; }
                 int empId = emp.get("id").getAsInt();
+                // Orders and summary both only need the id, so they go out together.
+                var orders = api.listOrdersByEmployeeAsync(empId, null, 200);
+                var summary = api.getEmployeeSummaryAsync(empId, month);
                 empInfo.setText(emp.get("first_name").getAsString() + " " + emp.get("last_name").getAsString());
                 empPay.setText("Weekly Payment: ₱" + format(emp.get("weekly_payment").getAsDouble()));
-                var list = api.listOrdersByEmployee(empId);
-                empOrdersTable.getItems().setAll(list);
-                var summary = api.getEmployeeSummary(empId, monthField.getText());
-                if (summary != null) {
-                    int present = summary.get("present_days").getAsInt();
-                    int absent = summary.get("absent_days").getAsInt();
+                empPhoto.setImage(emp.has("thumb_url") ? new Image(api.url(emp.get("thumb_url").getAsString()), true) : null);
+                onFx(orders, list -> empOrdersTable.getItems().setAll(list), "Fetch failed");
+                onFx(summary, s -> {
+                    if (s == null) return;
+                    int present = s.get("present_days").getAsInt();
+                    int absent = s.get("absent_days").getAsInt();
                     empAttendance.setText("Present: " + present + "  Absent: " + absent);
-                }
-            } catch (Exception e) { alert("Fetch failed", Alert.AlertType.ERROR); }
+                }, "Fetch failed");
+            }, "Fetch failed", empLookupBtn);
         });
 
         box.getChildren().addAll(
@@ -239,8 +292,10 @@ public class App extends Application {
                 new HBox(10, new Label("Date"), dateField, dailyBtn, dailyOut),
                 ordersTable,
                 new HBox(10, new Label("Month"), monthField, monthlyBtn, monthlyOut),
+                new HBox(10, new Label("From"), rangeFrom, new Label("To"), rangeTo, granularity, trendBtn),
+                trendChart,
                 new HBox(10, empUserField, empLookupBtn),
-                new HBox(10, empInfo, empPay, empAttendance),
+                new HBox(10, empPhoto, empInfo, empPay, empAttendance),
                 empOrdersTable
         );
         return box;
@@ -301,14 +356,14 @@ public class App extends Application {
         Button chooseImg = new Button("Choose Image");
         ImageView preview = new ImageView();
         preview.setFitWidth(120); preview.setFitHeight(120); preview.setPreserveRatio(true);
-        final byte[][] photoBytes = new byte[1][];
+        final java.nio.file.Path[] photoFile = new java.nio.file.Path[1];
         chooseImg.setOnAction(a -> {
             javafx.stage.FileChooser fc = new javafx.stage.FileChooser();
             fc.getExtensionFilters().add(new javafx.stage.FileChooser.ExtensionFilter("Images","*.png","*.jpg","*.jpeg"));
             java.io.File f = fc.showOpenDialog(box.getScene().getWindow());
             if (f != null) {
                 try {
-                    photoBytes[0] = java.nio.file.Files.readAllBytes(f.toPath());
+                    photoFile[0] = f.toPath();
                     preview.setImage(new javafx.scene.image.Image(f.toURI().toString()));
                 } catch (Exception ignored) {}
             }
@@ -342,13 +397,14 @@ public class App extends Application {
                 obj.addProperty("relation", relation.getText());
                 obj.addProperty("weeklyPayment", weeklyPay);
 
-                com.google.gson.JsonObject res = api.createEmployee(obj, photoBytes[0]);
-                if (res != null) {
-                    summary.setText("Employee #" + res.get("employee_id").getAsInt() + " registered. Weekly payment ₱" + format(weeklyPay));
-                    alert("Registered", Alert.AlertType.INFORMATION);
-                } else {
-                    alert("Registration failed", Alert.AlertType.ERROR);
-                }
+                onFx(api.createEmployeeAsync(obj, photoFile[0]), res -> {
+                    if (res != null) {
+                        summary.setText("Employee #" + res.get("employee_id").getAsInt() + " registered. Weekly payment ₱" + format(weeklyPay));
+                        alert("Registered", Alert.AlertType.INFORMATION);
+                    } else {
+                        alert("Registration failed", Alert.AlertType.ERROR);
+                    }
+                }, "Invalid input or network error", submit);
             } catch (Exception e) {
                 alert("Invalid input or network error", Alert.AlertType.ERROR);
             }
@@ -368,39 +424,72 @@ public class App extends Application {
         title.setFont(Font.font(18));
         title.setStyle("-fx-font-weight: bold;");
 
-        GridPane grid = new GridPane();
-        grid.setHgap(10);
-        grid.setVgap(10);
-        grid.setPadding(new Insets(10, 0, 0, 0));
-        this.menuGrid = grid;
+        TextField search = new TextField();
+        search.setPromptText("Type to filter by name or id");
+        search.textProperty().addListener((obs, old, q) -> menu.filter(q));
+        HBox.setHgrow(search, Priority.ALWAYS);
+
+        // Only the rows on screen get cells, so a 2,000 item menu costs the same as a short one.
+        ListView<InventoryItem> list = new ListView<>(menu.visible());
+        list.setFixedCellSize(38);
+        list.setCellFactory(v -> new MenuCell());
+        list.setPlaceholder(new Label("Loading menu..."));
+        VBox.setVgrow(list, Priority.ALWAYS);
+        this.menuList = list;
 
         Button refresh = new Button("Refresh Menu");
-        refresh.setOnAction(a -> populateMenuGrid(grid));
-        populateMenuGrid(grid);
+        refresh.setOnAction(a -> loadMenu());
+        loadMenu();
 
-        menuPane.getChildren().addAll(title, refresh, grid);
+        menuPane.getChildren().addAll(title, new HBox(10, search, refresh), list);
         return menuPane;
     }
 
-    private void populateMenuGrid(GridPane grid) {
-        grid.getChildren().clear();
-        try {
-            java.util.List<InventoryItem> items = api.listItems();
-            int row = 0;
-            for (InventoryItem inv : items) {
-                MenuItem m = new MenuItem(inv.id, inv.name, inv.price);
-                Label name = new Label(m.getName());
-                Label price = new Label("₱" + String.format("%.2f", m.getPrice()));
-                Button addBtn = new Button("Add");
-                addBtn.setOnAction(a -> addToCart(m));
-                grid.add(name, 0, row);
-                grid.add(price, 1, row);
-                grid.add(addBtn, 2, row);
-                row++;
+    private void loadMenu() {
+        api.listItemsAsync().whenComplete((items, e) -> Platform.runLater(() -> {
+            if (e == null) {
+                menuList.setPlaceholder(new Label("No items"));
+                menu.setAll(items);
+            } else {
+                menuList.setPlaceholder(new Label("Unable to load menu"));
+            }
+        }));
+    }
+
+    /** One menu row; cells are reused as the list scrolls, so the nodes are built once and only relabelled. */
+    private final class MenuCell extends ListCell<InventoryItem> {
+        private final Label name = new Label();
+        private final Label price = new Label();
+        private final Button add = new Button("Add");
+        private final HBox row;
+
+        MenuCell() {
+            Region gap = new Region();
+            HBox.setHgrow(gap, Priority.ALWAYS);
+            price.setMinWidth(70);
+            add.setMinWidth(70);
+            add.setOnAction(a -> {
+                InventoryItem inv = getItem();
+                if (inv != null) addToCart(new MenuItem(inv.id, inv.name, inv.price));
+            });
+            row = new HBox(10, name, gap, price, add);
+            row.setAlignment(Pos.CENTER_LEFT);
+        }
+
+        @Override
+        protected void updateItem(InventoryItem inv, boolean empty) {
+            super.updateItem(inv, empty);
+            setText(null);
+            if (empty || inv == null) {
+                setGraphic(null);
+                return;
             }
-        } catch (Exception e) {
-            Label err = new Label("Unable to load menu");
-            grid.add(err, 0, 0);
+            name.setText(inv.name);
+            price.setText("₱" + format(inv.price));
+            boolean soldOut = inv.stock <= 0;
+            add.setText(soldOut ? "Sold out" : "Add");
+            add.setDisable(soldOut);
+            setGraphic(row);
         }
     }
 
@@ -431,11 +520,11 @@ public class App extends Application {
         TextField paymentField = new TextField();
         paymentField.setPromptText("Enter payment amount");
         Button checkoutBtn = new Button("Checkout");
-        checkoutBtn.setOnAction(a -> checkout(paymentField));
+        checkoutBtn.setOnAction(a -> checkout(paymentField, checkoutBtn));
         checkoutBox.getChildren().addAll(paymentField, checkoutBtn);
         checkoutBox.setAlignment(Pos.CENTER_LEFT);
 
-        cartPane.getChildren().addAll(title, cartView, lineActions, totalLabel, checkoutBox);
+        cartPane.getChildren().addAll(title, cartView, lineActions, totalLabel, checkoutBox, syncLabel);
         return cartPane;
     }
 
@@ -464,29 +553,26 @@ public class App extends Application {
         updateTotal();
     }
 
-    private void checkout(TextField paymentField) {
+    /** Confirms the sale once it is in the local journal; the journal uploads it to the server in the background. */
+    private void checkout(TextField paymentField, Button checkoutBtn) {
         if (cart.isEmpty()) {
             alert("Cart is empty", Alert.AlertType.INFORMATION);
             return;
         }
+        ApiClient.Session cashier = api.session();
+        if (cashier == null) { alert("Login required", Alert.AlertType.WARNING); return; }
         double total = cart.stream().mapToDouble(CartItem::getLineTotal).sum();
         try {
             double payment = Double.parseDouble(paymentField.getText().trim());
             if (payment >= total) {
                 double change = payment - total;
-                try {
-                    com.google.gson.JsonObject res = api.createOrder(new java.util.ArrayList<>(cart), payment, api.getToken());
-                    if (res != null) {
-                        alert("Payment received: ₱" + format(payment) + "\nChange: ₱" + format(change), Alert.AlertType.INFORMATION);
-                    } else {
-                        alert("Payment recorded locally only", Alert.AlertType.WARNING);
-                    }
-                } catch (Exception ex) {
-                    alert("Failed to record order", Alert.AlertType.WARNING);
-                }
-                cart.clear();
-                paymentField.clear();
-                updateTotal();
+                List<CartItem> sold = new ArrayList<>(cart);
+                onFx(journal.record(sold, payment, cashier), done -> {
+                    cart.removeAll(sold);
+                    paymentField.clear();
+                    updateTotal();
+                    alert("Payment received: ₱" + format(payment) + "\nChange: ₱" + format(change), Alert.AlertType.INFORMATION);
+                }, "Could not save the sale. It has not been recorded.", checkoutBtn);
             } else {
                 alert("Insufficient payment. You still owe ₱" + format(total - payment), Alert.AlertType.WARNING);
             }
@@ -500,16 +586,47 @@ public class App extends Application {
         totalLabel.setText("Total: ₱" + format(total));
     }
 
+    private void updateSyncLabel() {
+        int pending = journal.pending();
+        int rejected = journal.rejected();
+        String text = pending == 0 ? "All sales uploaded" : "Sales waiting to upload: " + pending;
+        if (rejected > 0) text += " (" + rejected + " refused by server)";
+        syncLabel.setText(text);
+        syncLabel.setStyle(rejected > 0 ? "-fx-text-fill: #b22222;" : pending > 0 ? "-fx-text-fill: #b36b00;" : "-fx-text-fill: #2e7d32;");
+    }
+
     private String format(double v) {
         return String.format("%.2f", v);
     }
 
+    /**
+     * Hands the result of a background request to {@code done} on the FX thread, or shows
+     * {@code failure} if the request failed. {@code busy} nodes are disabled until it finishes.
+     */
+    private <T> void onFx(CompletableFuture<T> work, Consumer<T> done, String failure, Node... busy) {
+        for (Node n : busy) n.setDisable(true);
+        work.whenComplete((value, e) -> Platform.runLater(() -> {
+            for (Node n : busy) n.setDisable(false);
+            if (e != null) {
+                alert(failure, Alert.AlertType.ERROR);
+            } else {
+                done.accept(value);
+            }
+        }));
+    }
+
     private void alert(String msg, Alert.AlertType type) {
         Alert a = new Alert(type, msg, ButtonType.OK);
         a.setHeaderText(null);
         a.showAndWait();
     }
 
+    @Override
+    public void stop() throws IOException {
+        if (inventoryStream != null) inventoryStream.close();
+        if (journal != null) journal.close();
+    }
+
     public static void main(String[] args) {
         BackendServer.start();
         launch();
@@ -2,39 +2,116 @@ package com.phokingfabulous;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
-import org.mindrot.jbcrypt.BCrypt;
-
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonWriter;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestWrapper;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.*;
-import java.nio.file.*;
-import java.util.Base64;
 import java.time.LocalDate;
-import java.time.YearMonth;
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
 import java.util.*;
 
 import static spark.Spark.*;
 
 public class BackendServer {
     private static final Gson gson = new Gson();
-    private static final Map<String, Integer> sessions = new HashMap<>();
+    private static final int MAX_PAGE = 1000;
+    private static final int MAX_BATCH = Integer.getInteger("phoking.orders.maxBatch", 1000);
+    private static final boolean SIGNED_TOKENS = "signed".equals(System.getProperty("phoking.session.mode", "store"));
+
+    // Report queries, shared with ReportPlans so the plans it checks are the ones served.
+    static final String DAILY_REVENUE = "SELECT revenue FROM sales_daily WHERE day=?";
+    static final String MONTHLY_REVENUE = "SELECT revenue FROM sales_monthly WHERE month=?";
+    // Newest first by (created_epoch, id), which idx_orders_created already holds since every index
+    // ends in the rowid, so a page reads LIMIT index entries and sorts nothing. The cursor is the
+    // after_id order's own position in that key; ?2 stands in when there is none.
+    static final String ORDERS_ON_DAY = "SELECT o.id, o.total, o.created_at, u.username AS cashier FROM orders o INDEXED BY idx_orders_created LEFT JOIN users u ON o.cashier_id=u.id " +
+            "WHERE o.created_epoch >= ?1 AND o.created_epoch < ?2 AND (o.created_epoch, o.id) < (COALESCE((SELECT created_epoch FROM orders WHERE id = ?3), ?2), ?3) " +
+            "ORDER BY o.created_epoch DESC, o.id DESC LIMIT ?4";
+    static final String CASHIER_ORDERS = "SELECT id,total,created_at FROM orders WHERE cashier_id=? AND id < ? ORDER BY id DESC LIMIT ?";
+    static final String CASHIER_DAYS = "SELECT day, orders, revenue FROM sales_cashier_daily WHERE cashier_id=? AND day BETWEEN ? AND ?";
 
     public static void start() {
+        if ("virtual".equals(System.getProperty("phoking.server.threads"))) {
+            // sqlite-jdbc calls are native and pin their carrier, so keep at least one carrier per
+            // pooled connection or the pool can never be fully used.
+            int carriers = Integer.getInteger("phoking.server.carriers", Math.max(Runtime.getRuntime().availableProcessors(), Database.POOL_SIZE));
+            if (System.getProperty("jdk.virtualThreadScheduler.parallelism") == null) {
+                System.setProperty("jdk.virtualThreadScheduler.parallelism", String.valueOf(carriers));
+            }
+            EmbeddedServers.add(EmbeddedServers.defaultIdentifier(), new EmbeddedJettyFactory().withThreadPool(new VirtualThreadPool()));
+        }
         Database.init();
-        port(4567);
+        if (!SIGNED_TOKENS) SessionStore.start();
+        OrderWriter.start();
+        try {
+            StockLedger.start();
+            CatalogStream.start();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        port(Integer.getInteger("phoking.server.port", 4567));
 
-        after((req, res) -> res.type("application/json"));
+        before((req, res) -> Metrics.begin(req));
+        after((req, res) -> {
+            if (res.raw().getContentType() == null) res.type("application/json");
+        });
+        afterAfter((req, res) -> Metrics.end(req, res));
+
+        get("/stats/db", (req, res) -> gson.toJson(Database.stats()));
+        get("/stats/sessions", (req, res) -> gson.toJson(SessionStore.stats()));
+        get("/stats/auth", (req, res) -> gson.toJson(PasswordHasher.stats()));
+        get("/stats/orders", (req, res) -> gson.toJson(OrderWriter.stats()));
+        get("/stats/stock", (req, res) -> gson.toJson(StockLedger.stats()));
+        get("/stats/stream", (req, res) -> gson.toJson(CatalogStream.stats()));
+        get("/metrics", (req, res) -> {
+            res.type("text/plain; version=0.0.4; charset=utf-8");
+            return Metrics.scrape();
+        });
+
+        exception(JsonParseException.class, (e, req, res) -> {
+            res.status(400);
+            res.type("application/json");
+            res.body(gson.toJson(Map.of("error", "invalid_json")));
+        });
+
+        exception(BadParameter.class, (e, req, res) -> {
+            res.status(400);
+            res.type("application/json");
+            res.body(gson.toJson(Map.of("error", e.getMessage())));
+        });
+
+        exception(PasswordHasher.Busy.class, (e, req, res) -> {
+            res.status(503);
+            res.header("Retry-After", "1");
+            res.type("application/json");
+            res.body(gson.toJson(Map.of("error", e.getMessage())));
+        });
 
         post("/auth/register", (req, res) -> {
             JsonObject body = gson.fromJson(req.body(), JsonObject.class);
             String username = body.get("username").getAsString();
             String password = body.get("password").getAsString();
             String role = body.has("role") ? body.get("role").getAsString() : "cashier";
+            String hash = PasswordHasher.hash(password);
 
             try (Connection c = Database.get(); PreparedStatement ps = c.prepareStatement(
                     "INSERT INTO users(username,password_hash,role) VALUES(?,?,?)")) {
                 ps.setString(1, username);
-                ps.setString(2, BCrypt.hashpw(password, BCrypt.gensalt()));
+                ps.setString(2, hash);
                 ps.setString(3, role);
                 ps.executeUpdate();
                 res.status(201);
@@ -49,48 +126,79 @@ public class BackendServer {
             JsonObject body = gson.fromJson(req.body(), JsonObject.class);
             String username = body.get("username").getAsString();
             String password = body.get("password").getAsString();
+            int userId = -1;
+            String hash = null;
+            String role = null;
             try (Connection c = Database.get(); PreparedStatement ps = c.prepareStatement(
-                    "SELECT id, password_hash FROM users WHERE username=?")) {
+                    "SELECT id, password_hash, role FROM users WHERE username=?")) {
                 ps.setString(1, username);
                 ResultSet rs = ps.executeQuery();
-                if (rs.next() && BCrypt.checkpw(password, rs.getString("password_hash"))) {
-                    String token = UUID.randomUUID().toString();
-                    sessions.put(token, rs.getInt("id"));
-                    return gson.toJson(Map.of("token", token));
+                if (rs.next()) {
+                    userId = rs.getInt("id");
+                    hash = rs.getString("password_hash");
+                    role = rs.getString("role");
                 }
+            }
+            if (hash == null || !PasswordHasher.check(password, hash)) {
                 res.status(401);
                 return gson.toJson(Map.of("error", "invalid_credentials"));
             }
+            if (PasswordHasher.needsRehash(hash)) PasswordHasher.rehashLater(userId, password, hash);
+            String token = SIGNED_TOKENS ? TokenSigner.sign(userId, role) : SessionStore.create(userId);
+            return gson.toJson(Map.of("token", token));
+        });
+
+        post("/auth/logout", (req, res) -> {
+            String token = req.headers("Authorization");
+            boolean ended = token != null && (SIGNED_TOKENS ? TokenSigner.verify(token) != null : SessionStore.remove(token));
+            if (!ended) {
+                res.status(401);
+                return gson.toJson(Map.of("error", "unauthorized"));
+            }
+            return gson.toJson(Map.of("status", "ok"));
         });
 
         get("/inventory/items", (req, res) -> {
-            try (Connection c = Database.get(); Statement st = c.createStatement()) {
-                ResultSet rs = st.executeQuery("SELECT id,name,price,stock FROM menu_items ORDER BY id");
-                List<Map<String, Object>> list = new ArrayList<>();
-                while (rs.next()) {
-                    Map<String, Object> m = new LinkedHashMap<>();
-                    m.put("id", rs.getInt("id"));
-                    m.put("name", rs.getString("name"));
-                    m.put("price", rs.getDouble("price"));
-                    m.put("stock", rs.getInt("stock"));
-                    list.add(m);
-                }
-                return gson.toJson(list);
+            Catalog.Snapshot snap = Catalog.current();
+            res.header("ETag", snap.etag);
+            res.header("Last-Modified", snap.lastModified);
+            res.header("Cache-Control", "no-cache");
+            if (snap.notModified(req.headers("If-None-Match"), req.headers("If-Modified-Since"))) {
+                res.status(304);
+                return "";
+            }
+            return snap.json;
+        });
+
+        get("/inventory/items/changes", (req, res) -> {
+            Catalog.Snapshot snap = Catalog.current();
+            res.header("ETag", snap.etag);
+            res.header("Last-Modified", snap.lastModified);
+            res.header("Cache-Control", "no-cache");
+            if (snap.notModified(req.headers("If-None-Match"), req.headers("If-Modified-Since"))) {
+                res.status(304);
+                return "";
             }
+            return Catalog.changesSince(snap, req.queryParams("since"));
         });
 
+        // Live menu for tills: held open, one event per committed change (see CatalogStream).
+        get("/inventory/stream", CatalogStream::serve);
+
         post("/inventory/items", (req, res) -> {
             Integer uid = requireAuth(req, res);
             if (uid == null) return gson.toJson(Map.of("error", "unauthorized"));
-            JsonObject body = gson.fromJson(req.body(), JsonObject.class);
+            Json.ItemRequest body = Json.read(req, Json.ItemRequest.class);
             try (Connection c = Database.get(); PreparedStatement ps = c.prepareStatement(
                     "INSERT INTO menu_items(name,price,stock) VALUES(?,?,?)", Statement.RETURN_GENERATED_KEYS)) {
-                ps.setString(1, body.get("name").getAsString());
-                ps.setDouble(2, body.get("price").getAsDouble());
-                ps.setInt(3, body.get("stock").getAsInt());
+                ps.setString(1, body.name);
+                ps.setDouble(2, body.price);
+                ps.setInt(3, body.stock);
                 ps.executeUpdate();
                 ResultSet keys = ps.getGeneratedKeys();
                 int id = keys.next() ? keys.getInt(1) : -1;
+                StockLedger.set(id, body.stock);
+                Catalog.invalidate();
                 res.status(201);
                 return gson.toJson(Map.of("id", id));
             }
@@ -100,14 +208,28 @@ public class BackendServer {
             Integer uid = requireAuth(req, res);
             if (uid == null) return gson.toJson(Map.of("error", "unauthorized"));
             int id = Integer.parseInt(req.params(":id"));
-            JsonObject body = gson.fromJson(req.body(), JsonObject.class);
-            try (Connection c = Database.get(); PreparedStatement ps = c.prepareStatement(
-                    "UPDATE menu_items SET name=?, price=?, stock=? WHERE id=?")) {
-                ps.setString(1, body.get("name").getAsString());
-                ps.setDouble(2, body.get("price").getAsDouble());
-                ps.setInt(3, body.get("stock").getAsInt());
-                ps.setInt(4, id);
-                ps.executeUpdate();
+            Json.ItemRequest body = Json.read(req, Json.ItemRequest.class);
+            try (Connection c = Database.get()) {
+                c.setAutoCommit(false);
+                try (PreparedStatement ps = c.prepareStatement(
+                        "UPDATE menu_items SET name=?, price=?, stock=? WHERE id=?")) {
+                    // The count replaces the stored stock, so sales not yet written behind must land first.
+                    StockLedger.flush(c);
+                    ps.setString(1, body.name);
+                    ps.setDouble(2, body.price);
+                    ps.setInt(3, body.stock);
+                    ps.setInt(4, id);
+                    boolean updated = ps.executeUpdate() > 0;
+                    c.commit();
+                    // Only once the count is stored, and while the writer permit is still held.
+                    if (updated) StockLedger.set(id, body.stock);
+                } catch (SQLException e) {
+                    c.rollback();
+                    throw e;
+                } finally {
+                    c.setAutoCommit(true);
+                }
+                Catalog.invalidate();
                 return gson.toJson(Map.of("status", "updated"));
             }
         });
@@ -116,72 +238,103 @@ public class BackendServer {
             Integer cashierId = requireAuth(req, res);
             if (cashierId == null) return gson.toJson(Map.of("error", "unauthorized"));
 
-            JsonObject body = gson.fromJson(req.body(), JsonObject.class);
-            var items = body.getAsJsonArray("items");
-            double total = 0.0;
-
-            try (Connection c = Database.get()) {
-                c.setAutoCommit(false);
-                for (var el : items) {
-                    JsonObject it = el.getAsJsonObject();
-                    int itemId = it.get("id").getAsInt();
-                    int qty = it.get("quantity").getAsInt();
-                    try (PreparedStatement ps = c.prepareStatement("SELECT price, stock FROM menu_items WHERE id=?")) {
-                        ps.setInt(1, itemId);
-                        ResultSet rs = ps.executeQuery();
-                        if (!rs.next()) throw new SQLException("item_not_found");
-                        double price = rs.getDouble("price");
-                        int stock = rs.getInt("stock");
-                        if (stock < qty) throw new SQLException("insufficient_stock");
-                        total += price * qty;
+            Json.OrderRequest body = Json.read(req, Json.OrderRequest.class);
+            try {
+                // A till replaying its journal may resend a sale we already have; answer with that order.
+                if (body.ref != null) {
+                    try (Connection c = Database.get()) {
+                        Json.OrderResult done = Checkout.existing(c, body.ref, body.payment);
+                        if (done != null) return Json.write(Json.OrderResult.class, done, 64);
                     }
                 }
+                List<Checkout.Line> lines = Checkout.lines(body.items);
+                LocalDateTime soldAt = Checkout.soldAt(body.soldAt);
+                StockLedger.Reservation stock = StockLedger.reserve(lines);
+                OrderWriter.Placed placed;
+                try {
+                    placed = OrderWriter.place(cashierId, body, lines, soldAt, stock);
+                } finally {
+                    stock.release(); // a no-op once the writer has settled it
+                }
+                Metrics.chargeDbTime(placed.dbNanos());
+                res.status(placed.duplicate() ? 200 : 201);
+                return Json.write(Json.OrderResult.class, placed.result(), 64);
+            } catch (Checkout.Rejected e) {
+                res.status(400);
+                return gson.toJson(Map.of("error", e.getMessage(), "failed_items", e.failedItems));
+            } catch (SQLException e) {
+                // Nothing wrong with this order: its group failed or the database was busy, so it can be resent.
+                res.status(503);
+                res.header("Retry-After", "1");
+                return gson.toJson(Map.of("error", "order_not_written"));
+            }
+        });
 
-                try (PreparedStatement ps = c.prepareStatement(
-                        "INSERT INTO orders(cashier_id,total,created_at) VALUES(?,?,?)", Statement.RETURN_GENERATED_KEYS)) {
-                    ps.setInt(1, cashierId);
-                    ps.setDouble(2, total);
-                    ps.setString(3, LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
-                    ps.executeUpdate();
-                    ResultSet keys = ps.getGeneratedKeys();
-                    int orderId = keys.next() ? keys.getInt(1) : -1;
-
-                    for (var el : items) {
-                        JsonObject it = el.getAsJsonObject();
-                        int itemId = it.get("id").getAsInt();
-                        int qty = it.get("quantity").getAsInt();
-                        try (PreparedStatement psItem = c.prepareStatement("SELECT price FROM menu_items WHERE id=?")) {
-                            psItem.setInt(1, itemId);
-                            ResultSet rs = psItem.executeQuery();
-                            double price = rs.getDouble("price");
-                            try (PreparedStatement ins = c.prepareStatement(
-                                    "INSERT INTO order_items(order_id,menu_item_id,quantity,price) VALUES(?,?,?,?)")) {
-                                ins.setInt(1, orderId);
-                                ins.setInt(2, itemId);
-                                ins.setInt(3, qty);
-                                ins.setDouble(4, price);
-                                ins.executeUpdate();
-                            }
-                            try (PreparedStatement updStock = c.prepareStatement("UPDATE menu_items SET stock = stock - ? WHERE id=?")) {
-                                updStock.setInt(1, qty);
-                                updStock.setInt(2, itemId);
-                                updStock.executeUpdate();
-                            }
+        // Many orders in one transaction and one fsync, for tills replaying a backlog and for
+        // paper-ticket imports. Each order gets its own result; mode decides whether a rejected
+        // order sinks the whole batch (409, nothing written) or only itself.
+        post("/orders/batch", (req, res) -> {
+            Integer cashierId = requireAuth(req, res);
+            if (cashierId == null) return gson.toJson(Map.of("error", "unauthorized"));
+
+            Json.OrderBatch body = Json.read(req, Json.OrderBatch.class);
+            boolean allOrNothing = "all_or_nothing".equals(body.mode);
+            if (!allOrNothing && !"best_effort".equals(body.mode)) {
+                res.status(400);
+                return gson.toJson(Map.of("error", "invalid_mode"));
+            }
+            if (body.orders.isEmpty() || body.orders.size() > MAX_BATCH) {
+                res.status(400);
+                return gson.toJson(Map.of("error", "batch_size", "max", MAX_BATCH));
+            }
+            List<StockLedger.Reservation> held = new ArrayList<>();
+            try (Connection c = Database.get()) {
+                c.setAutoCommit(false);
+                try {
+                    List<Map<String, Object>> results = Checkout.writeBatch(c, cashierId, body.orders, held);
+                    int accepted = 0;
+                    for (Map<String, Object> r : results) if (r.get("status").equals("accepted")) accepted++;
+                    boolean commit = !allOrNothing || accepted == results.size();
+                    if (commit) {
+                        c.commit();
+                        held.forEach(StockLedger.Reservation::commit);
+                        if (accepted > 0) Catalog.invalidate();
+                    } else {
+                        c.rollback();
+                        // Duplicates of orders committed before this batch still stand; everything written here is gone.
+                        Set<Object> written = new HashSet<>();
+                        for (Map<String, Object> r : results) if (!r.containsKey("duplicate")) written.add(r.get("order_id"));
+                        for (Map<String, Object> r : results) {
+                            if (!r.get("status").equals("accepted") || !written.contains(r.get("order_id"))) continue;
+                            r.put("status", "aborted");
+                            r.remove("order_id");
+                            r.remove("total");
+                            r.remove("change");
+                            r.remove("duplicate");
                         }
                     }
-
-                    c.commit();
-                    res.status(201);
-                    double payment = body.get("payment").getAsDouble();
-                    double change = payment - total;
-                    return gson.toJson(Map.of("order_id", orderId, "total", total, "change", change));
+                    Map<String, Object> out = new LinkedHashMap<>();
+                    out.put("mode", body.mode);
+                    out.put("committed", commit);
+                    out.put("accepted", commit ? accepted : 0);
+                    out.put("rejected", results.size() - accepted);
+                    out.put("results", results);
+                    res.status(commit ? 200 : 409);
+                    return gson.toJson(out);
                 } catch (SQLException e) {
                     c.rollback();
-                    res.status(400);
-                    return gson.toJson(Map.of("error", e.getMessage()));
+                    throw e;
                 } finally {
                     c.setAutoCommit(true);
                 }
+            } catch (SQLException e) {
+                // Per-order refusals are in the results; this is the database failing, so the batch can be resent.
+                res.status(503);
+                res.header("Retry-After", "1");
+                return gson.toJson(Map.of("error", "batch_not_written"));
+            } finally {
+                // Whatever was not committed above goes back on sale.
+                held.forEach(StockLedger.Reservation::release);
             }
         });
 
@@ -192,48 +345,86 @@ public class BackendServer {
             try (Connection c = Database.get(); PreparedStatement ps = c.prepareStatement("DELETE FROM menu_items WHERE id=?")) {
                 ps.setInt(1, id);
                 int affected = ps.executeUpdate();
+                StockLedger.remove(id);
+                Catalog.invalidate();
                 return gson.toJson(Map.of("deleted", affected));
             }
         });
 
         get("/reports/sales/daily", (req, res) -> {
             String dateStr = Optional.ofNullable(req.queryParams("date")).orElse(LocalDate.now().toString());
-            try (Connection c = Database.get(); PreparedStatement ps = c.prepareStatement(
-                    "SELECT SUM(total) AS revenue FROM orders WHERE substr(created_at,1,10)=?")) {
+            try (Connection c = Database.get(); PreparedStatement ps = c.prepareStatement(DAILY_REVENUE)) {
                 ps.setString(1, dateStr);
                 ResultSet rs = ps.executeQuery();
-                double revenue = rs.getDouble("revenue");
+                double revenue = rs.next() ? rs.getDouble("revenue") : 0.0;
                 return gson.toJson(Map.of("date", dateStr, "revenue", revenue));
             }
         });
 
         get("/reports/sales/monthly", (req, res) -> {
             String month = Optional.ofNullable(req.queryParams("month")).orElse(LocalDate.now().toString().substring(0,7));
-            try (Connection c = Database.get(); PreparedStatement ps = c.prepareStatement(
-                    "SELECT SUM(total) AS revenue FROM orders WHERE substr(created_at,1,7)=?")) {
+            try (Connection c = Database.get(); PreparedStatement ps = c.prepareStatement(MONTHLY_REVENUE)) {
                 ps.setString(1, month);
                 ResultSet rs = ps.executeQuery();
-                double revenue = rs.getDouble("revenue");
+                double revenue = rs.next() ? rs.getDouble("revenue") : 0.0;
                 return gson.toJson(Map.of("month", month, "revenue", revenue));
             }
         });
 
+        get("/reports/sales/range", (req, res) -> {
+            String today = LocalDate.now().toString();
+            String granularity = Optional.ofNullable(req.queryParams("granularity")).orElse("day");
+            try {
+                LocalDate from = LocalDate.parse(Optional.ofNullable(req.queryParams("from")).orElse(today));
+                LocalDate to = LocalDate.parse(Optional.ofNullable(req.queryParams("to")).orElse(today));
+                Map<String,Object> out = new LinkedHashMap<>();
+                out.put("from", from.toString());
+                out.put("to", to.toString());
+                out.put("granularity", granularity);
+                out.put("buckets", SalesRange.query(from, to, granularity));
+                return gson.toJson(out);
+            } catch (DateTimeParseException e) {
+                res.status(400);
+                return gson.toJson(Map.of("error", "invalid_date"));
+            } catch (IllegalArgumentException e) {
+                res.status(400);
+                return gson.toJson(Map.of("error", e.getMessage()));
+            }
+        });
+
+        post("/reports/rollups/rebuild", (req, res) -> {
+            Integer uid = requireAuth(req, res);
+            if (uid == null) return gson.toJson(Map.of("error", "unauthorized"));
+            Rollups.rebuild();
+            return gson.toJson(Map.of("status", "rebuilt"));
+        });
+
         get("/reports/orders", (req, res) -> {
-            String dateStr = Optional.ofNullable(req.queryParams("date")).orElse(LocalDate.now().toString());
-            try (Connection c = Database.get(); PreparedStatement ps = c.prepareStatement(
-                    "SELECT o.id, o.total, o.created_at, u.username AS cashier FROM orders o LEFT JOIN users u ON o.cashier_id=u.id WHERE substr(o.created_at,1,10)=? ORDER BY o.id DESC")) {
-                ps.setString(1, dateStr);
-                ResultSet rs = ps.executeQuery();
-                List<Map<String,Object>> list = new ArrayList<>();
-                while (rs.next()) {
-                    Map<String,Object> m = new LinkedHashMap<>();
-                    m.put("id", rs.getInt("id"));
-                    m.put("total", rs.getDouble("total"));
-                    m.put("created_at", rs.getString("created_at"));
-                    m.put("cashier", rs.getString("cashier"));
-                    list.add(m);
-                }
-                return gson.toJson(list);
+            LocalDate date = date(req);
+            try (Connection c = Database.get(); PreparedStatement ps = c.prepareStatement(ORDERS_ON_DAY)) {
+                ps.setLong(1, Database.epochSecond(date.atStartOfDay()));
+                ps.setLong(2, Database.epochSecond(date.plusDays(1).atStartOfDay()));
+                ps.setLong(3, afterId(req));
+                ps.setInt(4, limit(req));
+                return streamOrders(ps.executeQuery(), res, true);
+            }
+        });
+
+        post("/uploads/photos", (req, res) -> {
+            Integer uid = requireAuth(req, res);
+            if (uid == null) return gson.toJson(Map.of("error", "unauthorized"));
+            long length = req.raw().getContentLengthLong();
+            if (length > PhotoStore.MAX_BYTES) {
+                res.status(413);
+                return gson.toJson(Map.of("error", "photo_too_large"));
+            }
+            try {
+                PhotoStore.Photo photo = PhotoStore.store(requestBody(req), length);
+                res.status(201);
+                return gson.toJson(Map.of("photo_id", photo.id(), "content_type", photo.contentType(), "size", photo.size()));
+            } catch (PhotoStore.Rejected e) {
+                res.status(e.status);
+                return gson.toJson(Map.of("error", e.getMessage()));
             }
         });
 
@@ -242,14 +433,15 @@ public class BackendServer {
             String username = b.get("username").getAsString();
             String password = b.get("password").getAsString();
             String role = b.has("role") ? b.get("role").getAsString() : "cashier";
-            String photoBase64 = b.has("photoBase64") ? b.get("photoBase64").getAsString() : null;
+            String hash = PasswordHasher.hash(password);
+            String photoId = str(b, "photoId");
 
             try (Connection c = Database.get()) {
                 c.setAutoCommit(false);
                 int userId;
                 try (PreparedStatement ps = c.prepareStatement("INSERT INTO users(username,password_hash,role) VALUES(?,?,?)", Statement.RETURN_GENERATED_KEYS)) {
                     ps.setString(1, username);
-                    ps.setString(2, BCrypt.hashpw(password, BCrypt.gensalt()));
+                    ps.setString(2, hash);
                     ps.setString(3, role);
                     ps.executeUpdate();
                     ResultSet keys = ps.getGeneratedKeys();
@@ -257,13 +449,14 @@ public class BackendServer {
                 }
 
                 String photoPath = null;
-                if (photoBase64 != null && !photoBase64.isEmpty()) {
-                    byte[] data = Base64.getDecoder().decode(photoBase64);
-                    Path dir = Paths.get("uploads");
-                    Files.createDirectories(dir);
-                    Path out = dir.resolve("emp_" + username + "_" + System.currentTimeMillis() + ".png");
-                    Files.write(out, data);
-                    photoPath = out.toString();
+                if (photoId != null) {
+                    PhotoStore.Photo photo = PhotoStore.find(c, photoId);
+                    if (photo == null) {
+                        c.rollback();
+                        res.status(400);
+                        return gson.toJson(Map.of("error", "photo_not_found"));
+                    }
+                    photoPath = photo.path().toString();
                 }
 
                 try (PreparedStatement ps = c.prepareStatement(
@@ -292,7 +485,12 @@ public class BackendServer {
                     int empId = keys.next() ? keys.getInt(1) : -1;
                     c.commit();
                     res.status(201);
-                    return gson.toJson(Map.of("employee_id", empId, "user_id", userId, "weekly_payment", b.get("weeklyPayment").getAsDouble(), "photo_path", photoPath));
+                    Map<String, Object> out = new LinkedHashMap<>();
+                    out.put("employee_id", empId);
+                    out.put("user_id", userId);
+                    out.put("weekly_payment", b.get("weeklyPayment").getAsDouble());
+                    out.put("photo_path", photoPath);
+                    return gson.toJson(out);
                 } catch (SQLException ex) {
                     c.rollback();
                     res.status(400);
@@ -315,10 +513,31 @@ public class BackendServer {
                 m.put("last_name", rs.getString("last_name"));
                 m.put("weekly_payment", rs.getDouble("weekly_payment"));
                 m.put("photo_path", rs.getString("photo_path"));
+                putPhotoUrls(m, rs.getInt("id"), rs.getString("photo_path"));
                 return gson.toJson(m);
             }
         });
 
+        get("/employees/:id/photo", (req, res) -> {
+            int id = Integer.parseInt(req.params(":id"));
+            String photoPath;
+            try (Connection c = Database.get(); PreparedStatement ps = c.prepareStatement("SELECT photo_path FROM employees WHERE id=?")) {
+                ps.setInt(1, id);
+                ResultSet rs = ps.executeQuery();
+                photoPath = rs.next() ? rs.getString("photo_path") : null;
+            }
+            Path file = photoPath == null ? null : Paths.get(photoPath);
+            if (file == null || !Files.isRegularFile(file)) {
+                res.status(404);
+                return gson.toJson(Map.of("error", "not_found"));
+            }
+            String tag = PhotoStore.etag(file);
+            if ("thumb".equals(req.queryParams("size"))) {
+                return PhotoStore.serve(PhotoStore.thumbnail(file, tag), "image/png", "\"" + tag + "-t" + PhotoStore.THUMB_SIZE + "\"", req, res);
+            }
+            return PhotoStore.serve(file, PhotoStore.contentType(file), "\"" + tag + "\"", req, res);
+        });
+
         get("/employees/:id/orders", (req, res) -> {
             int empId = Integer.parseInt(req.params(":id"));
             try (Connection c = Database.get(); PreparedStatement psEmp = c.prepareStatement("SELECT user_id FROM employees WHERE id=?")) {
@@ -326,18 +545,11 @@ public class BackendServer {
                 ResultSet rsEmp = psEmp.executeQuery();
                 if (!rsEmp.next()) { res.status(404); return gson.toJson(Map.of("error","not_found")); }
                 int userId = rsEmp.getInt("user_id");
-                try (PreparedStatement ps = c.prepareStatement("SELECT id,total,created_at FROM orders WHERE cashier_id=? ORDER BY id DESC")) {
+                try (PreparedStatement ps = c.prepareStatement(CASHIER_ORDERS)) {
                     ps.setInt(1, userId);
-                    ResultSet rs = ps.executeQuery();
-                    List<Map<String,Object>> list = new ArrayList<>();
-                    while (rs.next()) {
-                        Map<String,Object> m = new LinkedHashMap<>();
-                        m.put("id", rs.getInt("id"));
-                        m.put("total", rs.getDouble("total"));
-                        m.put("created_at", rs.getString("created_at"));
-                        list.add(m);
-                    }
-                    return gson.toJson(list);
+                    ps.setLong(2, afterId(req));
+                    ps.setInt(3, limit(req));
+                    return streamOrders(ps.executeQuery(), res, false);
                 }
             }
         });
@@ -356,6 +568,7 @@ public class BackendServer {
                     m.put("last_name", rs.getString("last_name"));
                     m.put("weekly_payment", rs.getDouble("weekly_payment"));
                     m.put("photo_path", rs.getString("photo_path"));
+                    putPhotoUrls(m, rs.getInt("id"), rs.getString("photo_path"));
                     m.put("username", username);
                     return gson.toJson(m);
                 }
@@ -372,54 +585,28 @@ public class BackendServer {
                 ResultSet rsEmp = psEmp.executeQuery();
                 if (!rsEmp.next()) { res.status(404); return gson.toJson(Map.of("error","not_found")); }
                 int userId = rsEmp.getInt("user_id");
-                try (PreparedStatement ps = c.prepareStatement("SELECT substr(created_at,1,10) as d, COUNT(*) as cnt, SUM(total) as revenue FROM orders WHERE cashier_id=? AND substr(created_at,1,7)=? GROUP BY d")) {
+                YearMonth ym = YearMonth.parse(month);
+                try (PreparedStatement ps = c.prepareStatement(CASHIER_DAYS)) {
                     ps.setInt(1, userId);
-                    ps.setString(2, month);
+                    ps.setString(2, ym.atDay(1).toString());
+                    ps.setString(3, ym.atEndOfMonth().toString());
                     ResultSet rs = ps.executeQuery();
-                    Map<String, Map<String,Object>> perDay = new HashMap<>();
-                    int totalOrders = 0;
-                    double totalRevenue = 0.0;
+                    int[] orders = new int[ym.lengthOfMonth()];
+                    double[] revenue = new double[orders.length];
+                    boolean[] present = new boolean[orders.length];
                     while (rs.next()) {
-                        String d = rs.getString("d");
-                        int cnt = rs.getInt("cnt");
-                        double rev = rs.getDouble("revenue");
-                        totalOrders += cnt;
-                        totalRevenue += rev;
-                        Map<String,Object> inf = new LinkedHashMap<>();
-                        inf.put("date", d);
-                        inf.put("orders", cnt);
-                        inf.put("revenue", rev);
-                        inf.put("present", true);
-                        perDay.put(d, inf);
+                        int i = Integer.parseInt(rs.getString("day").substring(8, 10)) - 1;
+                        orders[i] = rs.getInt("orders");
+                        revenue[i] = rs.getDouble("revenue");
+                        present[i] = true;
                     }
-                    YearMonth ym = YearMonth.parse(month);
-                    List<Map<String,Object>> days = new ArrayList<>();
-                    for (int i=1; i<=ym.lengthOfMonth(); i++) {
-                        String d = ym.atDay(i).toString();
-                        if (perDay.containsKey(d)) {
-                            days.add(perDay.get(d));
-                        } else {
-                            Map<String,Object> inf = new LinkedHashMap<>();
-                            inf.put("date", d);
-                            inf.put("orders", 0);
-                            inf.put("revenue", 0.0);
-                            inf.put("present", false);
-                            days.add(inf);
-                        }
-                    }
-                    long presentDays = days.stream().filter(x -> (Boolean)x.get("present")).count();
-                    long absentDays = days.size() - presentDays;
-                    Map<String,Object> out = new LinkedHashMap<>();
-                    out.put("month", month);
-                    out.put("total_orders", totalOrders);
-                    out.put("total_revenue", totalRevenue);
-                    out.put("present_days", presentDays);
-                    out.put("absent_days", absentDays);
-                    out.put("days", days);
-                    return gson.toJson(out);
+                    return Json.write(new Json.EmployeeSummary(ym, orders, revenue, present));
                 }
             }
         });
+
+        awaitInitialization();
+        Metrics.routesRegistered();
     }
 
     private static Integer requireAuth(spark.Request req, spark.Response res) {
@@ -428,13 +615,97 @@ public class BackendServer {
             res.status(401);
             return null;
         }
-        Integer uid = sessions.get(token);
+        Integer uid;
+        if (SIGNED_TOKENS) {
+            TokenSigner.Claims claims = TokenSigner.verify(token);
+            uid = claims == null ? null : claims.userId();
+        } else {
+            uid = SessionStore.lookup(token);
+        }
         if (uid == null) {
             res.status(401);
         }
         return uid;
     }
 
+    /**
+     * The body as Jetty delivers it. Spark's request wrapper copies a body of known length into a
+     * byte[] on its first read, so large bodies are read from underneath it to stay streamed.
+     */
+    static InputStream requestBody(spark.Request req) throws IOException {
+        ServletRequest raw = req.raw();
+        while (raw instanceof ServletRequestWrapper w) raw = w.getRequest();
+        return raw.getInputStream();
+    }
+
+    /** A malformed query parameter; answered with 400 and the message as the error code. */
+    private static class BadParameter extends RuntimeException {
+        BadParameter(String error) {
+            super(error);
+        }
+    }
+
+    /** The {@code date} query parameter, today when absent. */
+    private static LocalDate date(spark.Request req) {
+        String v = req.queryParams("date");
+        if (v == null) return LocalDate.now();
+        try {
+            return LocalDate.parse(v);
+        } catch (DateTimeParseException e) {
+            throw new BadParameter("invalid_date");
+        }
+    }
+
+    /** Keyset cursor for order listings: only orders with an id below {@code after_id}. */
+    private static long afterId(spark.Request req) {
+        String v = req.queryParams("after_id");
+        if (v == null) return Long.MAX_VALUE;
+        try {
+            return Long.parseLong(v);
+        } catch (NumberFormatException e) {
+            throw new BadParameter("invalid_after_id");
+        }
+    }
+
+    /** Page size for order listings; without {@code limit} every matching row is streamed. */
+    private static int limit(spark.Request req) {
+        String v = req.queryParams("limit");
+        if (v == null) return -1;
+        try {
+            return Math.max(1, Math.min(MAX_PAGE, Integer.parseInt(v)));
+        } catch (NumberFormatException e) {
+            throw new BadParameter("invalid_limit");
+        }
+    }
+
+    /**
+     * Writes order rows straight from the cursor to the response, so memory stays flat however
+     * many rows match. Clients page by passing the last id they received as {@code after_id}.
+     */
+    private static String streamOrders(ResultSet rs, spark.Response res, boolean withCashier) throws Exception {
+        res.status(200);
+        res.type("application/json");
+        JsonWriter w = new JsonWriter(new BufferedWriter(new OutputStreamWriter(res.raw().getOutputStream(), StandardCharsets.UTF_8)));
+        w.beginArray();
+        while (rs.next()) {
+            w.beginObject();
+            w.name("id").value(rs.getInt("id"));
+            w.name("total").value(rs.getDouble("total"));
+            w.name("created_at").value(rs.getString("created_at"));
+            if (withCashier) w.name("cashier").value(rs.getString("cashier"));
+            w.endObject();
+        }
+        w.endArray();
+        w.flush();
+        return "";
+    }
+
+    private static void putPhotoUrls(Map<String, Object> m, int employeeId, String photoPath) {
+        if (photoPath == null) return;
+        m.put("photo_url", "/employees/" + employeeId + "/photo");
+        m.put("thumb_url", "/employees/" + employeeId + "/photo?size=thumb");
+    }
+
     private static String str(JsonObject b, String k) {
         return b.has(k) && !b.get(k).isJsonNull() ? b.get(k).getAsString() : null;
     }
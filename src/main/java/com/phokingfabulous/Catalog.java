@@ -0,0 +1,251 @@
+package com.phokingfabulous;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serialized menu served by GET /inventory/items. Writers call {@link #invalidate()} after they
+ * commit; the next reader rebuilds the snapshot once and every other reader shares its bytes.
+ * The item ids touched by the last few versions are kept so clients can ask for a delta, and
+ * {@link CatalogStream} is told about every invalidation so it can push one.
+ */
+public class Catalog {
+    private static final String EPOCH = Long.toString(System.currentTimeMillis(), 36);
+    private static final int HISTORY = Integer.getInteger("phoking.catalog.history", 64);
+    private static final AtomicLong generation = new AtomicLong(1);
+    private static final ArrayDeque<Change> history = new ArrayDeque<>();
+    private static volatile Snapshot current = new Snapshot(0, 0, new byte[0], Map.of(), 0, 0);
+
+    private record Change(long version, Set<Integer> ids) {
+    }
+
+    public static final class Snapshot {
+        public final long version;
+        public final byte[] json;
+        public final String etag;
+        public final String lastModified;
+        final Map<Integer, InventoryItem> rows;
+        final long generation;
+        final long lastModifiedSec;
+        final long previousModifiedSec;
+
+        Snapshot(long version, long generation, byte[] json, Map<Integer, InventoryItem> rows, long lastModifiedSec, long previousModifiedSec) {
+            this.version = version;
+            this.generation = generation;
+            this.json = json;
+            this.rows = rows;
+            this.etag = "\"" + tag(version) + "\"";
+            this.lastModifiedSec = lastModifiedSec;
+            this.previousModifiedSec = previousModifiedSec;
+            this.lastModified = DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                    ZonedDateTime.ofInstant(Instant.ofEpochSecond(lastModifiedSec), ZoneOffset.UTC));
+        }
+
+        public boolean notModified(String ifNoneMatch, String ifModifiedSince) {
+            if (ifNoneMatch != null) {
+                for (String tag : ifNoneMatch.split(",")) {
+                    String t = tag.trim();
+                    if (t.startsWith("W/")) t = t.substring(2);
+                    if (t.equals(etag) || t.equals("*")) return true;
+                }
+                return false;
+            }
+            if (ifModifiedSince != null) {
+                try {
+                    long since = ZonedDateTime.parse(ifModifiedSince.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+                    // Two versions built within the same second share a Last-Modified, so only the
+                    // first of them can be confirmed by date alone.
+                    return since >= lastModifiedSec && since > previousModifiedSec;
+                } catch (DateTimeParseException e) {
+                    return false;
+                }
+            }
+            return false;
+        }
+    }
+
+    public static Snapshot current() throws SQLException {
+        Snapshot snap = current;
+        if (snap.generation == generation.get()) return snap;
+        synchronized (Catalog.class) {
+            snap = current;
+            long gen = generation.get();
+            if (snap.generation == gen) return snap;
+            Map<Integer, InventoryItem> rows = new TreeMap<>();
+            byte[] json = load(rows);
+            if (Arrays.equals(json, snap.json)) {
+                snap = new Snapshot(snap.version, gen, snap.json, snap.rows, snap.lastModifiedSec, snap.previousModifiedSec);
+            } else {
+                long now = System.currentTimeMillis() / 1000;
+                Snapshot next = new Snapshot(snap.version + 1, gen, json, Collections.unmodifiableMap(rows), Math.max(now, snap.lastModifiedSec), snap.lastModifiedSec);
+                history.addLast(new Change(next.version, diff(snap.rows, next.rows)));
+                while (history.size() > HISTORY) history.removeFirst();
+                snap = next;
+            }
+            current = snap;
+            return snap;
+        }
+    }
+
+    /**
+     * JSON body for GET /inventory/items/changes: only the rows added, changed or deleted after
+     * the version in {@code since}, or the whole menu when that version is from another server
+     * run or too old to be covered by the retained history.
+     */
+    public static String changesSince(Snapshot snap, String since) throws IOException {
+        Set<Integer> ids = touchedSince(snap, since);
+        StringWriter out = new StringWriter();
+        try (JsonWriter w = new JsonWriter(out)) {
+            w.beginObject();
+            w.name("version").value(tag(snap.version));
+            w.name("full").value(ids == null);
+            if (ids == null) {
+                w.name("items").jsonValue(new String(snap.json, StandardCharsets.UTF_8));
+            } else {
+                w.name("changed").beginArray();
+                List<Integer> deleted = new ArrayList<>();
+                for (Integer id : ids) {
+                    InventoryItem it = snap.rows.get(id);
+                    if (it == null) {
+                        deleted.add(id);
+                        continue;
+                    }
+                    w.beginObject();
+                    w.name("id").value(it.id);
+                    w.name("name").value(it.name);
+                    w.name("price").value(it.price);
+                    w.name("stock").value(it.stock);
+                    w.endObject();
+                }
+                w.endArray();
+                w.name("deleted").beginArray();
+                for (Integer id : deleted) w.value(id);
+                w.endArray();
+            }
+            w.endObject();
+        }
+        return out.toString();
+    }
+
+    private static Set<Integer> touchedSince(Snapshot snap, String since) {
+        long from = version(since);
+        if (from < 0) return null;
+        if (from == snap.version) return Set.of();
+        if (from > snap.version) return null;
+        synchronized (Catalog.class) {
+            if (history.isEmpty() || history.peekFirst().version() > from + 1) return null;
+            Set<Integer> ids = new TreeSet<>();
+            for (Change ch : history) {
+                if (ch.version() > from && ch.version() <= snap.version) ids.addAll(ch.ids());
+            }
+            return ids;
+        }
+    }
+
+    private static Set<Integer> diff(Map<Integer, InventoryItem> before, Map<Integer, InventoryItem> after) {
+        Set<Integer> ids = new HashSet<>();
+        for (InventoryItem it : after.values()) {
+            InventoryItem old = before.get(it.id);
+            if (old == null || !old.name.equals(it.name) || old.price != it.price || old.stock != it.stock) ids.add(it.id);
+        }
+        for (Integer id : before.keySet()) {
+            if (!after.containsKey(id)) ids.add(id);
+        }
+        return ids;
+    }
+
+    /**
+     * Field-level changes from {@code before} to {@code after} as one JSON object: each changed
+     * item carries its id and only the fields that moved, plus {@code sold_out} when it ran out or
+     * came back; new items carry every field. Deleted ids are listed apart.
+     */
+    static String delta(Snapshot before, Snapshot after) throws IOException {
+        StringWriter out = new StringWriter();
+        try (JsonWriter w = new JsonWriter(out)) {
+            w.beginObject();
+            w.name("items").beginArray();
+            List<Integer> deleted = new ArrayList<>();
+            for (Integer id : new TreeSet<>(diff(before.rows, after.rows))) {
+                InventoryItem old = before.rows.get(id);
+                InventoryItem it = after.rows.get(id);
+                if (it == null) {
+                    deleted.add(id);
+                    continue;
+                }
+                w.beginObject();
+                w.name("id").value(it.id);
+                if (old == null || !old.name.equals(it.name)) w.name("name").value(it.name);
+                if (old == null || old.price != it.price) w.name("price").value(it.price);
+                if (old == null || old.stock != it.stock) w.name("stock").value(it.stock);
+                if (old == null ? it.stock <= 0 : (old.stock <= 0) != (it.stock <= 0)) w.name("sold_out").value(it.stock <= 0);
+                w.endObject();
+            }
+            w.endArray();
+            w.name("deleted").beginArray();
+            for (Integer id : deleted) w.value(id);
+            w.endArray();
+            w.endObject();
+        }
+        return out.toString();
+    }
+
+    static String tag(long version) {
+        return EPOCH + "-" + version;
+    }
+
+    /** The version in a tag from this server run, or -1 for a tag from another run or not a tag at all. */
+    static long version(String tag) {
+        if (tag == null) return -1;
+        int dash = tag.lastIndexOf('-');
+        if (dash < 0 || !tag.substring(0, dash).equals(EPOCH)) return -1;
+        try {
+            return Long.parseLong(tag.substring(dash + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public static void invalidate() {
+        generation.incrementAndGet();
+        CatalogStream.changed();
+    }
+
+    private static byte[] load(Map<Integer, InventoryItem> rows) throws SQLException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(Math.max(256, current.json.length));
+        try (Connection c = Database.get(); PreparedStatement ps = c.prepareStatement(
+                "SELECT id,name,price,stock FROM menu_items ORDER BY id");
+             JsonWriter w = new JsonWriter(new OutputStreamWriter(buf, StandardCharsets.UTF_8))) {
+            ResultSet rs = ps.executeQuery();
+            w.beginArray();
+            while (rs.next()) {
+                // The stored stock lags the ledger by up to one flush; show what can actually be sold.
+                int id = rs.getInt("id");
+                InventoryItem it = new InventoryItem(id, rs.getString("name"), rs.getDouble("price"), StockLedger.available(id, rs.getInt("stock")));
+                rows.put(it.id, it);
+                w.beginObject();
+                w.name("id").value(it.id);
+                w.name("name").value(it.name);
+                w.name("price").value(it.price);
+                w.name("stock").value(it.stock);
+                w.endObject();
+            }
+            w.endArray();
+        } catch (IOException e) {
+            throw new SQLException(e);
+        }
+        return buf.toByteArray();
+    }
+}
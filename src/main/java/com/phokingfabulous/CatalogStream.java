@@ -0,0 +1,204 @@
+package com.phokingfabulous;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server-sent events for GET /inventory/stream. {@link Catalog#invalidate()} wakes one publisher
+ * thread, which rebuilds the snapshot at most every {@code phoking.stream.minIntervalMs} and
+ * sends every subscriber an {@code items} event with only the fields that changed since the
+ * previous event. The event id is the catalog version, the same one the ETag of
+ * GET /inventory/items carries, so a till can resume from either.
+ *
+ * A reconnecting client sends Last-Event-ID and gets the events it missed from a backlog of the
+ * last {@code phoking.stream.backlog}; a client that is too far behind, from another server run
+ * or new gets one {@code reset} event holding the whole menu instead. Each subscriber has its own
+ * bounded queue drained on its request thread, so a slow till never holds up the publisher; if
+ * its queue overflows it is sent a reset rather than an incomplete run of deltas.
+ */
+public class CatalogStream {
+    private static final long MIN_INTERVAL_MS = Long.getLong("phoking.stream.minIntervalMs", 200);
+    private static final long KEEPALIVE_MS = Long.getLong("phoking.stream.keepaliveMs", 15_000);
+    private static final int BACKLOG = Integer.getInteger("phoking.stream.backlog", 256);
+    private static final int CLIENT_QUEUE = Integer.getInteger("phoking.stream.clientQueue", 64);
+    private static final int MAX_CLIENTS = Integer.getInteger("phoking.stream.maxClients", 64);
+    private static final long RETRY_MS = Long.getLong("phoking.stream.retryMs", 3_000);
+
+    private record Event(long from, long version, byte[] frame) {
+    }
+
+    private static final class Client {
+        final BlockingQueue<Event> queue = new ArrayBlockingQueue<>(CLIENT_QUEUE);
+        volatile boolean overflowed;
+    }
+
+    private static final ArrayDeque<Event> backlog = new ArrayDeque<>();
+    private static final Set<Client> clients = ConcurrentHashMap.newKeySet();
+    private static final Semaphore wake = new Semaphore(0);
+    private static final AtomicLong published = new AtomicLong();
+    private static final AtomicLong resets = new AtomicLong();
+    private static final AtomicLong overflows = new AtomicLong();
+    private static Catalog.Snapshot latest;
+    private static Thread thread;
+
+    public static synchronized void start() throws SQLException {
+        if (thread != null) return;
+        latest = Catalog.current();
+        thread = new Thread(CatalogStream::run, "catalog-stream");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Called on every catalog invalidation; cheap, and many calls before the publisher wakes count as one. */
+    static void changed() {
+        if (wake.availablePermits() == 0) wake.release();
+    }
+
+    public static Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("clients", clients.size());
+        m.put("events", published.get());
+        m.put("resets", resets.get());
+        m.put("overflows", overflows.get());
+        return m;
+    }
+
+    private static void run() {
+        while (true) {
+            try {
+                wake.acquire();
+                wake.drainPermits();
+                publish();
+                Thread.sleep(MIN_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            } catch (SQLException | IOException | RuntimeException e) {
+                // The next invalidation retries against whatever was published last.
+            }
+        }
+    }
+
+    private static void publish() throws SQLException, IOException {
+        Catalog.Snapshot before;
+        synchronized (CatalogStream.class) {
+            before = latest;
+        }
+        Catalog.Snapshot next = Catalog.current();
+        if (next.version <= before.version) return;
+        Event event = new Event(before.version, next.version, frame("items", next.version, Catalog.delta(before, next).getBytes(StandardCharsets.UTF_8)));
+        synchronized (CatalogStream.class) {
+            backlog.addLast(event);
+            while (backlog.size() > BACKLOG) backlog.removeFirst();
+            latest = next;
+            for (Client c : clients) {
+                if (!c.queue.offer(event)) {
+                    c.overflowed = true;
+                    overflows.incrementAndGet();
+                }
+            }
+        }
+        published.incrementAndGet();
+    }
+
+    /**
+     * Serves one subscriber until it disconnects, on the request's own thread. Returns the body
+     * Spark should write, which is empty once the stream has started.
+     */
+    public static String serve(spark.Request req, spark.Response res) {
+        if (clients.size() >= MAX_CLIENTS) {
+            res.status(503);
+            return "{\"error\":\"too_many_subscribers\"}";
+        }
+        HttpServletResponse raw = res.raw();
+        raw.setStatus(200);
+        raw.setContentType("text/event-stream; charset=utf-8");
+        raw.setHeader("Cache-Control", "no-cache");
+        raw.setHeader("X-Accel-Buffering", "no");
+
+        Client client = new Client();
+        List<byte[]> catchUp = new ArrayList<>();
+        catchUp.add(("retry: " + RETRY_MS + "\n\n").getBytes(StandardCharsets.UTF_8));
+        synchronized (CatalogStream.class) {
+            // Registered under the same lock publish() holds, so every event is either replayed here or queued.
+            clients.add(client);
+            replay(req.headers("Last-Event-ID"), catchUp);
+        }
+        try {
+            OutputStream out = raw.getOutputStream();
+            for (byte[] frame : catchUp) out.write(frame);
+            out.flush();
+            while (true) {
+                Event event = client.queue.poll(KEEPALIVE_MS, TimeUnit.MILLISECONDS);
+                if (client.overflowed) {
+                    byte[] frame;
+                    synchronized (CatalogStream.class) {
+                        client.queue.clear();
+                        client.overflowed = false;
+                        frame = reset();
+                    }
+                    out.write(frame);
+                } else if (event != null) {
+                    out.write(event.frame());
+                } else {
+                    out.write(": keepalive\n\n".getBytes(StandardCharsets.UTF_8));
+                }
+                out.flush();
+            }
+        } catch (IOException | InterruptedException e) {
+            // The till went away; it will reconnect with its Last-Event-ID.
+        } finally {
+            clients.remove(client);
+        }
+        return "";
+    }
+
+    /** Frames a client at {@code lastEventId} needs to reach the latest event. Caller holds the lock. */
+    private static void replay(String lastEventId, List<byte[]> out) {
+        long from = Catalog.version(lastEventId);
+        if (from == latest.version) return;
+        if (from >= 0 && from < latest.version && !backlog.isEmpty()) {
+            List<byte[]> missed = new ArrayList<>();
+            for (Event e : backlog) {
+                if (e.version() <= from) continue;
+                // Deltas carry absolute values, so one that starts before the client's version still applies.
+                if (missed.isEmpty() && e.from() > from) break;
+                missed.add(e.frame());
+            }
+            if (!missed.isEmpty()) {
+                out.addAll(missed);
+                return;
+            }
+        }
+        out.add(reset());
+    }
+
+    private static byte[] reset() {
+        resets.incrementAndGet();
+        return frame("reset", latest.version, latest.json);
+    }
+
+    private static byte[] frame(String type, long version, byte[] data) {
+        byte[] head = ("event: " + type + "\nid: " + Catalog.tag(version) + "\ndata: ").getBytes(StandardCharsets.UTF_8);
+        byte[] frame = new byte[head.length + data.length + 2];
+        System.arraycopy(head, 0, frame, 0, head.length);
+        System.arraycopy(data, 0, frame, head.length, data.length);
+        frame[frame.length - 2] = '\n';
+        frame[frame.length - 1] = '\n';
+        return frame;
+    }
+}
@@ -0,0 +1,212 @@
+package com.phokingfabulous;
+
+import java.sql.*;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+
+public class Checkout {
+    public static class Line {
+        public final int itemId;
+        public int quantity;
+        public double price;
+
+        Line(int itemId, int quantity) {
+            this.itemId = itemId;
+            this.quantity = quantity;
+        }
+    }
+
+    public static class Rejected extends SQLException {
+        public final List<Integer> failedItems;
+
+        Rejected(String reason, List<Integer> failedItems) {
+            super(reason);
+            this.failedItems = failedItems;
+        }
+    }
+
+    /** Validates the requested lines and merges repeated item ids into one line each. */
+    public static List<Line> lines(List<Line> items) throws Rejected {
+        Map<Integer, Line> byId = new LinkedHashMap<>();
+        List<Integer> invalid = new ArrayList<>();
+        for (Line it : items) {
+            if (it.quantity <= 0) {
+                invalid.add(it.itemId);
+                continue;
+            }
+            Line line = byId.get(it.itemId);
+            if (line == null) byId.put(it.itemId, new Line(it.itemId, it.quantity));
+            else line.quantity += it.quantity;
+        }
+        if (!invalid.isEmpty()) throw new Rejected("invalid_quantity", invalid);
+        if (byId.isEmpty()) throw new Rejected("empty_order", List.of());
+        return new ArrayList<>(byId.values());
+    }
+
+    /**
+     * Prices every line with one query and returns the order total; nothing is locked. Whether
+     * the stock is there is the {@link StockLedger}'s call, made before an order gets this far.
+     */
+    public static double price(Connection c, List<Line> lines) throws SQLException {
+        Map<Integer, Line> byId = new HashMap<>();
+        StringBuilder ids = new StringBuilder("[");
+        for (Line line : lines) {
+            byId.put(line.itemId, line);
+            if (ids.length() > 1) ids.append(',');
+            ids.append(line.itemId);
+        }
+        ids.append(']');
+
+        Set<Integer> found = new HashSet<>();
+        try (PreparedStatement ps = c.prepareStatement(
+                "SELECT id, price FROM menu_items WHERE id IN (SELECT value FROM json_each(?))")) {
+            ps.setString(1, ids.toString());
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                Line line = byId.get(rs.getInt("id"));
+                found.add(line.itemId);
+                line.price = rs.getDouble("price");
+            }
+        }
+        List<Integer> missing = new ArrayList<>();
+        for (Line line : lines) if (!found.contains(line.itemId)) missing.add(line.itemId);
+        if (!missing.isEmpty()) throw new Rejected("item_not_found", missing);
+
+        double total = 0.0;
+        for (Line line : lines) total += line.price * line.quantity;
+        return total;
+    }
+
+    /**
+     * Writes a priced order inside the caller's transaction: the order row, one order_items batch
+     * and the sales rollups. Stock is not touched here; the caller holds a {@link StockLedger}
+     * reservation for the lines, and the ledger takes them off menu_items.stock later.
+     */
+    public static int write(Connection c, int cashierId, List<Line> lines, double total) throws SQLException {
+        return write(c, cashierId, lines, total, null, LocalDateTime.now(), null);
+    }
+
+    /**
+     * As {@link #write(Connection, int, List, double)}, for a sale made at {@code soldAt} and tagged
+     * with the till's {@code ref}. With {@code rollups} set, the rollup increments are added to it
+     * for the caller to flush before committing.
+     */
+    public static int write(Connection c, int cashierId, List<Line> lines, double total, String ref, LocalDateTime soldAt,
+                            Rollups.Batch rollups) throws SQLException {
+        int orderId;
+        String createdAt = soldAt.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+        try (PreparedStatement ps = c.prepareStatement(
+                "INSERT INTO orders(cashier_id,total,created_at,created_epoch,client_ref) VALUES(?,?,?,?,?)", Statement.RETURN_GENERATED_KEYS)) {
+            ps.setInt(1, cashierId);
+            ps.setDouble(2, total);
+            ps.setString(3, createdAt);
+            ps.setLong(4, Database.epochSecond(soldAt));
+            ps.setString(5, ref);
+            ps.executeUpdate();
+            ResultSet keys = ps.getGeneratedKeys();
+            orderId = keys.next() ? keys.getInt(1) : -1;
+        }
+
+        try (PreparedStatement ps = c.prepareStatement(
+                "INSERT INTO order_items(order_id,menu_item_id,quantity,price) VALUES(?,?,?,?)")) {
+            for (Line line : lines) {
+                ps.setInt(1, orderId);
+                ps.setInt(2, line.itemId);
+                ps.setInt(3, line.quantity);
+                ps.setDouble(4, line.price);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+
+        int items = 0;
+        for (Line line : lines) items += line.quantity;
+        if (rollups != null) rollups.add(cashierId, createdAt, total, items);
+        else Rollups.record(c, cashierId, createdAt, total, items);
+        return orderId;
+    }
+
+    /**
+     * Writes many orders inside the caller's transaction, each through {@link #place}, so one
+     * rejected order leaves the rest intact. Each new order first reserves its stock, so it is
+     * checked against what the earlier orders of the batch have already taken; the reservations
+     * of accepted orders are added to {@code held}. Returns one result per order, in request
+     * order; committing or rolling back, and then committing or releasing {@code held} to match,
+     * is left to the caller.
+     */
+    public static List<Map<String, Object>> writeBatch(Connection c, int cashierId, List<Json.OrderRequest> orders,
+                                                       List<StockLedger.Reservation> held) throws SQLException {
+        List<Map<String, Object>> results = new ArrayList<>(orders.size());
+        Rollups.Batch rollups = new Rollups.Batch();
+        for (Json.OrderRequest o : orders) {
+            Map<String, Object> r = new LinkedHashMap<>();
+            if (o.ref != null) r.put("ref", o.ref);
+            try {
+                Json.OrderResult done = existing(c, o.ref, o.payment);
+                boolean duplicate = done != null;
+                if (!duplicate) {
+                    List<Line> lines = lines(o.items);
+                    LocalDateTime soldAt = soldAt(o.soldAt);
+                    StockLedger.Reservation stock = StockLedger.reserve(lines);
+                    try {
+                        done = place(c, cashierId, o, lines, soldAt, rollups);
+                    } catch (SQLException | RuntimeException e) {
+                        stock.release();
+                        throw e;
+                    }
+                    held.add(stock);
+                }
+                r.put("status", "accepted");
+                if (duplicate) r.put("duplicate", true);
+                r.put("order_id", done.orderId());
+                r.put("total", done.total());
+                r.put("change", done.change());
+            } catch (Rejected e) {
+                r.put("status", "rejected");
+                r.put("error", e.getMessage());
+                r.put("failed_items", e.failedItems);
+            }
+            results.add(r);
+        }
+        rollups.flush(c);
+        return results;
+    }
+
+    /**
+     * Prices and writes one order inside a transaction that may already hold others. An item
+     * deleted since the order was reserved rejects it before any of its rows are written, and the
+     * rest of the transaction stands.
+     */
+    public static Json.OrderResult place(Connection c, int cashierId, Json.OrderRequest o, List<Line> lines, LocalDateTime soldAt,
+                                        Rollups.Batch rollups) throws SQLException {
+        double total = price(c, lines);
+        int orderId = write(c, cashierId, lines, total, o.ref, soldAt, rollups);
+        return new Json.OrderResult(orderId, total, o.payment - total);
+    }
+
+    /** The order already stored under a till's {@code ref}, or null if there is none. */
+    public static Json.OrderResult existing(Connection c, String ref, double payment) throws SQLException {
+        if (ref == null) return null;
+        try (PreparedStatement ps = c.prepareStatement("SELECT id, total FROM orders WHERE client_ref=?")) {
+            ps.setString(1, ref);
+            ResultSet rs = ps.executeQuery();
+            return rs.next() ? new Json.OrderResult(rs.getInt(1), rs.getDouble(2), payment - rs.getDouble(2)) : null;
+        }
+    }
+
+    /**
+     * When a sale was made: the till's own timestamp for uploads from its journal, otherwise now.
+     * A till clock running ahead of the server is clamped to now so no order lands in the future.
+     */
+    public static LocalDateTime soldAt(String iso) throws Rejected {
+        LocalDateTime now = LocalDateTime.now();
+        if (iso == null) return now;
+        try {
+            LocalDateTime at = LocalDateTime.parse(iso);
+            return at.isAfter(now) ? now : at;
+        } catch (java.time.format.DateTimeParseException e) {
+            throw new Rejected("invalid_sold_at", List.of());
+        }
+    }
+}
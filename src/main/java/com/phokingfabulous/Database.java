@@ -1,10 +1,340 @@
 package com.phokingfabulous;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.*;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Bounded pool of warm SQLite connections. Connections are opened in WAL mode so readers never
+ * block the single writer, and write transactions begin IMMEDIATE so two writers queue on
+ * busy_timeout instead of deadlocking on a lock upgrade. Each pooled connection keeps its own
+ * prepared-statement cache; closing a pooled connection or statement hands it back for reuse.
+ * Write transactions also take the writer permit first, so they queue in FIFO order in Java
+ * rather than polling SQLite's busy handler on a blocked (possibly carrier) thread.
+ */
 public class Database {
+    private static final String URL = "jdbc:sqlite:" + System.getProperty("phoking.db", "phoking.db");
+    static final int POOL_SIZE = Integer.getInteger("phoking.db.poolSize", Math.max(4, Runtime.getRuntime().availableProcessors()));
+    private static final int STATEMENT_CACHE_SIZE = Integer.getInteger("phoking.db.statementCache", 64);
+    private static final long BORROW_TIMEOUT_MS = Long.getLong("phoking.db.borrowTimeoutMs", 10_000);
+    private static final int BUSY_TIMEOUT_MS = Integer.getInteger("phoking.db.busyTimeoutMs", 5_000);
+    private static final long MMAP_SIZE = Long.getLong("phoking.db.mmapSize", 256L * 1024 * 1024);
+    private static final int WRITERS = Integer.getInteger("phoking.db.writers", 1);
+
+    // Last in, first out: a connection's page cache is dropped whenever another connection has
+    // written since it last ran, so handing out the most recently used one keeps caches warm.
+    private static final BlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>(POOL_SIZE);
+    private static final Semaphore permits = new Semaphore(POOL_SIZE, true);
+    private static final AtomicLong opened = new AtomicLong();
+    private static final AtomicLong borrowed = new AtomicLong();
+    private static final AtomicLong waited = new AtomicLong();
+    private static final AtomicLong timeouts = new AtomicLong();
+    private static final AtomicLong statementHits = new AtomicLong();
+    private static final AtomicLong statementMisses = new AtomicLong();
+    private static final Semaphore writer = new Semaphore(WRITERS, true);
+    private static final AtomicLong writerWaits = new AtomicLong();
+    private static final AtomicLong writerTimeouts = new AtomicLong();
+
     public static Connection get() throws SQLException {
-        return DriverManager.getConnection("jdbc:sqlite:phoking.db");
+        boolean acquired = permits.tryAcquire();
+        if (!acquired) {
+            waited.incrementAndGet();
+            try {
+                acquired = permits.tryAcquire(BORROW_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("interrupted waiting for a connection", e);
+            }
+            if (!acquired) {
+                timeouts.incrementAndGet();
+                throw new SQLException("connection_pool_exhausted");
+            }
+        }
+        try {
+            PooledConnection pc = idle.pollFirst();
+            if (pc == null || !pc.isUsable()) {
+                if (pc != null) pc.destroy();
+                pc = new PooledConnection(open());
+                opened.incrementAndGet();
+            }
+            borrowed.incrementAndGet();
+            return pc.lease();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    static Connection open() throws SQLException {
+        Properties props = new Properties();
+        props.setProperty("journal_mode", "WAL");
+        props.setProperty("synchronous", "NORMAL");
+        props.setProperty("cache_size", "-16000");
+        props.setProperty("busy_timeout", String.valueOf(BUSY_TIMEOUT_MS));
+        props.setProperty("transaction_mode", "IMMEDIATE");
+        props.setProperty("temp_store", "MEMORY");
+        props.setProperty("mmap_size", String.valueOf(MMAP_SIZE));
+        return DriverManager.getConnection(URL, props);
+    }
+
+    public static Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("max_size", POOL_SIZE);
+        m.put("in_use", POOL_SIZE - permits.availablePermits());
+        m.put("idle", idle.size());
+        m.put("opened", opened.get());
+        m.put("borrowed", borrowed.get());
+        m.put("waited", waited.get());
+        m.put("timeouts", timeouts.get());
+        m.put("statement_cache_hits", statementHits.get());
+        m.put("statement_cache_misses", statementMisses.get());
+        m.put("writer_waiting", writer.getQueueLength());
+        m.put("writer_waits", writerWaits.get());
+        m.put("writer_timeouts", writerTimeouts.get());
+        return m;
+    }
+
+    private static void acquireWriter() throws SQLException {
+        if (writer.tryAcquire()) return;
+        writerWaits.incrementAndGet();
+        try {
+            if (writer.tryAcquire(BUSY_TIMEOUT_MS, TimeUnit.MILLISECONDS)) return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted waiting for the writer", e);
+        }
+        writerTimeouts.incrementAndGet();
+        throw new SQLException("database_busy");
+    }
+
+    private static void release(PooledConnection pc) {
+        if (!pc.reset() || !idle.offerFirst(pc)) pc.destroy();
+        permits.release();
+    }
+
+    private static final class PooledConnection implements InvocationHandler {
+        private final Connection raw;
+        private final Map<String, CachedStatement> statements = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+                if (size() <= STATEMENT_CACHE_SIZE || eldest.getValue().inUse) return false;
+                eldest.getValue().closeQuietly();
+                return true;
+            }
+        };
+        private Connection proxy;
+        private boolean leased;
+        private boolean writing;
+
+        PooledConnection(Connection raw) {
+            this.raw = raw;
+        }
+
+        Connection lease() {
+            leased = true;
+            proxy = (Connection) Proxy.newProxyInstance(Database.class.getClassLoader(), new Class<?>[]{Connection.class}, this);
+            return proxy;
+        }
+
+        boolean isUsable() {
+            try {
+                return !raw.isClosed();
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        boolean reset() {
+            try {
+                for (CachedStatement cs : statements.values()) {
+                    if (cs.inUse) cs.release();
+                }
+                if (!raw.getAutoCommit()) {
+                    raw.rollback();
+                    raw.setAutoCommit(true);
+                }
+                return !raw.isClosed();
+            } catch (SQLException e) {
+                return false;
+            } finally {
+                endWrite();
+            }
+        }
+
+        private void endWrite() {
+            if (writing) {
+                writing = false;
+                writer.release();
+            }
+        }
+
+        private void setAutoCommit(boolean autoCommit) throws SQLException {
+            if (autoCommit) {
+                try {
+                    raw.setAutoCommit(true);
+                } finally {
+                    endWrite();
+                }
+                return;
+            }
+            if (!writing) {
+                acquireWriter();
+                writing = true;
+            }
+            try {
+                raw.setAutoCommit(false);
+            } catch (SQLException | RuntimeException e) {
+                endWrite();
+                throw e;
+            }
+        }
+
+        void destroy() {
+            for (CachedStatement cs : statements.values()) cs.closeQuietly();
+            statements.clear();
+            try {
+                raw.close();
+            } catch (SQLException ignored) {
+            }
+        }
+
+        @Override
+        public Object invoke(Object p, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (leased && p == proxy) {
+                        leased = false;
+                        release(this);
+                    }
+                    return null;
+                case "isClosed":
+                    return !leased || p != proxy || raw.isClosed();
+                case "unwrap":
+                    return raw.unwrap((Class<?>) args[0]);
+                case "isWrapperFor":
+                    return raw.isWrapperFor((Class<?>) args[0]);
+                case "equals":
+                    return p == args[0];
+                case "hashCode":
+                    return System.identityHashCode(p);
+                case "toString":
+                    return "Pooled[" + raw + "]";
+            }
+            if (!leased || p != proxy) throw new SQLException("connection already returned to pool");
+            if (method.getName().equals("setAutoCommit")) {
+                setAutoCommit((Boolean) args[0]);
+                return null;
+            }
+            if (method.getName().equals("prepareStatement") && isCacheable(method)) {
+                return prepare((String) args[0], args.length == 2 ? (Integer) args[1] : Statement.NO_GENERATED_KEYS);
+            }
+            try {
+                return method.invoke(raw, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        private boolean isCacheable(Method method) {
+            Class<?>[] params = method.getParameterTypes();
+            return params.length == 1 || (params.length == 2 && params[1] == int.class);
+        }
+
+        private PreparedStatement prepare(String sql, int generatedKeys) throws SQLException {
+            String key = generatedKeys + ":" + sql;
+            CachedStatement cs = statements.get(key);
+            if (cs != null && !cs.inUse) {
+                statementHits.incrementAndGet();
+                return cs.acquire();
+            }
+            statementMisses.incrementAndGet();
+            PreparedStatement ps = raw.prepareStatement(sql, generatedKeys);
+            if (cs != null) {
+                // Same SQL already open on this connection (nested use); hand out an uncached one.
+                return ps;
+            }
+            cs = new CachedStatement(ps);
+            statements.put(key, cs);
+            return cs.acquire();
+        }
+    }
+
+    private static final class CachedStatement implements InvocationHandler {
+        private final PreparedStatement raw;
+        private final List<ResultSet> openResults = new ArrayList<>();
+        private PreparedStatement proxy;
+        private boolean inUse;
+
+        CachedStatement(PreparedStatement raw) {
+            this.raw = raw;
+        }
+
+        PreparedStatement acquire() {
+            inUse = true;
+            proxy = (PreparedStatement) Proxy.newProxyInstance(Database.class.getClassLoader(), new Class<?>[]{PreparedStatement.class}, this);
+            return proxy;
+        }
+
+        void release() {
+            inUse = false;
+            for (ResultSet rs : openResults) {
+                try {
+                    rs.close();
+                } catch (SQLException ignored) {
+                }
+            }
+            openResults.clear();
+            try {
+                raw.clearParameters();
+                raw.clearBatch();
+            } catch (SQLException ignored) {
+            }
+        }
+
+        void closeQuietly() {
+            try {
+                raw.close();
+            } catch (SQLException ignored) {
+            }
+        }
+
+        @Override
+        public Object invoke(Object p, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (inUse && proxy == p) release();
+                    return null;
+                case "isClosed":
+                    return proxy != p || !inUse;
+                case "getConnection":
+                    throw new SQLFeatureNotSupportedException("getConnection on a cached statement");
+                case "equals":
+                    return p == args[0];
+                case "hashCode":
+                    return System.identityHashCode(p);
+            }
+            if (proxy != p || !inUse) throw new SQLException("statement already closed");
+            long start = method.getName().startsWith("execute") ? System.nanoTime() : 0;
+            try {
+                Object result = method.invoke(raw, args);
+                if (result instanceof ResultSet) openResults.add((ResultSet) result);
+                return result;
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            } finally {
+                if (start != 0) Metrics.addDbTime(System.nanoTime() - start);
+            }
+        }
     }
 
     public static void init() {
@@ -44,8 +374,60 @@ public class Database {
                     "father TEXT, mother TEXT, guardian TEXT, relation TEXT, " +
                     "weekly_payment REAL NOT NULL, photo_path TEXT, " +
                     "FOREIGN KEY(user_id) REFERENCES users(id))");
+
+            Rollups.createTables(st);
+            PhotoStore.createTable(st);
+            migrate(c, st);
+            if (Rollups.needsRebuild(st)) Rollups.rebuild();
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
     }
-}
\ No newline at end of file
+
+    /** Schema changes after the original tables, tracked in PRAGMA user_version. */
+    private static void migrate(Connection c, Statement st) throws SQLException {
+        int version;
+        try (ResultSet rs = st.executeQuery("PRAGMA user_version")) {
+            version = rs.next() ? rs.getInt(1) : 0;
+        }
+        if (version >= 4) return;
+        c.setAutoCommit(false);
+        try {
+            if (version < 1) migrateEpochColumn(st);
+            // Keyset pages of one cashier's orders walk this index in id order.
+            if (version < 2) st.executeUpdate("CREATE INDEX IF NOT EXISTS idx_orders_cashier_id ON orders(cashier_id, id)");
+            if (version < 3) {
+                // Tills name each sale so a retried upload finds the order it already created.
+                st.executeUpdate("ALTER TABLE orders ADD COLUMN client_ref TEXT");
+                st.executeUpdate("CREATE UNIQUE INDEX IF NOT EXISTS idx_orders_client_ref ON orders(client_ref) WHERE client_ref IS NOT NULL");
+            }
+            if (version < 4) {
+                // Stock is written behind the orders; this marks the last order already taken off it.
+                st.executeUpdate("CREATE TABLE IF NOT EXISTS stock_sync (id INTEGER PRIMARY KEY CHECK (id = 1), order_id INTEGER NOT NULL)");
+                st.executeUpdate("INSERT OR IGNORE INTO stock_sync VALUES (1, (SELECT COALESCE(MAX(id), 0) FROM orders))");
+            }
+            st.executeUpdate("PRAGMA user_version = 4");
+            c.commit();
+        } catch (SQLException e) {
+            c.rollback();
+            throw e;
+        } finally {
+            c.setAutoCommit(true);
+        }
+    }
+
+    private static void migrateEpochColumn(Statement st) throws SQLException {
+        // created_at is an ISO local timestamp; created_epoch is the same instant in seconds so
+        // date filters become index range scans instead of substr() over every row.
+        st.executeUpdate("ALTER TABLE orders ADD COLUMN created_epoch INTEGER");
+        st.executeUpdate("UPDATE orders SET created_epoch = CAST(strftime('%s', created_at, 'utc') AS INTEGER)");
+        st.executeUpdate("CREATE INDEX IF NOT EXISTS idx_orders_created ON orders(created_epoch)");
+        st.executeUpdate("CREATE INDEX IF NOT EXISTS idx_orders_cashier_created ON orders(cashier_id, created_epoch)");
+        st.executeUpdate("CREATE INDEX IF NOT EXISTS idx_order_items_order ON order_items(order_id)");
+        st.executeUpdate("CREATE INDEX IF NOT EXISTS idx_order_items_item ON order_items(menu_item_id)");
+    }
+
+    public static long epochSecond(LocalDateTime t) {
+        return t.atZone(ZoneId.systemDefault()).toEpochSecond();
+    }
+}
@@ -0,0 +1,122 @@
+package com.phokingfabulous;
+
+import java.net.http.HttpResponse;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Keeps a till's menu live from GET /inventory/stream. One daemon thread holds the connection,
+ * applies each event to the ApiClient's copy of the menu and tells the listener which rows
+ * changed. When the connection drops it reconnects after the server's retry delay, backing off up
+ * to {@code phoking.stream.maxBackoffMs} while the server is unreachable, and resumes after the
+ * last version it applied so no change is missed or fetched twice.
+ */
+public class InventoryStream implements AutoCloseable {
+    private static final long MAX_BACKOFF_MS = Long.getLong("phoking.stream.maxBackoffMs", 30_000);
+
+    public interface Listener {
+        /** The whole menu was replaced, e.g. on first connect or after falling too far behind. */
+        void reset(List<InventoryItem> items);
+
+        /** Rows added or changed, by id; a null value means the item was deleted. */
+        void changed(Map<Integer, InventoryItem> rows);
+    }
+
+    private final ApiClient api;
+    private final Thread thread;
+    private final Listener listener;
+    private volatile Stream<String> open;
+    private volatile boolean closed;
+    private long retryMs = 3_000;
+
+    public InventoryStream(ApiClient api, Listener listener) {
+        this.api = api;
+        this.listener = listener;
+        thread = new Thread(this::run, "inventory-stream");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        long backoff = 0;
+        while (!closed) {
+            try {
+                HttpResponse<Stream<String>> res = api.openInventoryStream();
+                try (Stream<String> lines = res.body()) {
+                    open = lines;
+                    if (res.statusCode() == 200) {
+                        backoff = 0;
+                        read(lines.iterator());
+                    }
+                }
+            } catch (Exception e) {
+                // Server down or connection cut; try again below.
+            } finally {
+                open = null;
+            }
+            if (closed) return;
+            backoff = backoff == 0 ? retryMs : Math.min(MAX_BACKOFF_MS, backoff * 2);
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /** Parses events until the stream ends: fields up to a blank line make one event. */
+    private void read(Iterator<String> lines) {
+        String type = "message";
+        String id = null;
+        StringBuilder data = new StringBuilder();
+        while (lines.hasNext()) {
+            String line = lines.next();
+            if (line.isEmpty()) {
+                if (id != null && data.length() > 0) dispatch(type, id, data.toString());
+                type = "message";
+                id = null;
+                data.setLength(0);
+                continue;
+            }
+            if (line.startsWith(":")) continue;
+            int colon = line.indexOf(':');
+            String field = colon < 0 ? line : line.substring(0, colon);
+            String value = colon < 0 ? "" : line.substring(colon + 1);
+            if (value.startsWith(" ")) value = value.substring(1);
+            switch (field) {
+                case "event" -> type = value;
+                case "id" -> id = value;
+                case "data" -> {
+                    if (data.length() > 0) data.append('\n');
+                    data.append(value);
+                }
+                case "retry" -> {
+                    try {
+                        retryMs = Long.parseLong(value);
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+                default -> { }
+            }
+        }
+    }
+
+    private void dispatch(String type, String id, String data) {
+        Map<Integer, InventoryItem> rows = api.applyCatalogEvent(type, id, data);
+        if (rows == null) {
+            listener.reset(api.cachedItems());
+        } else if (!rows.isEmpty()) {
+            listener.changed(rows);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        thread.interrupt();
+        Stream<String> lines = open;
+        if (lines != null) lines.close();
+    }
+}
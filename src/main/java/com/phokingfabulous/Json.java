@@ -0,0 +1,290 @@
+package com.phokingfabulous;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Typed bodies for the busiest endpoints, each with a hand-written adapter that reads or writes
+ * fields straight through JsonReader/JsonWriter: no JsonObject tree, no reflection, no boxed
+ * numbers in a Map.
+ */
+public class Json {
+    public static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(OrderRequest.class, new OrderRequestAdapter())
+            .registerTypeAdapter(OrderResult.class, new OrderResultAdapter())
+            .registerTypeAdapter(OrderBatch.class, new OrderBatchAdapter())
+            .registerTypeAdapter(ItemRequest.class, new ItemRequestAdapter())
+            .create();
+    private static final int INLINE_BODY = 64 * 1024;
+
+    public static final class OrderRequest {
+        public final List<Checkout.Line> items = new ArrayList<>();
+        public double payment;
+        /** Till-generated id that makes a retried upload idempotent; null for plain checkouts. */
+        public String ref;
+        /** ISO local time the sale was made at the till, when it is uploaded later. */
+        public String soldAt;
+    }
+
+    public record OrderResult(int orderId, double total, double change) {
+    }
+
+    public static final class OrderBatch {
+        public final List<OrderRequest> orders = new ArrayList<>();
+        /** {@code all_or_nothing} commits only if every order is accepted; {@code best_effort} commits the ones that are. */
+        public String mode = "best_effort";
+    }
+
+    public static final class ItemRequest {
+        public String name;
+        public double price;
+        public int stock;
+    }
+
+    /** One cashier's month: orders and revenue per day of month, index 0 being the 1st. */
+    public record EmployeeSummary(YearMonth month, int[] orders, double[] revenue, boolean[] present) {
+    }
+
+    /**
+     * Parses the request body as {@code type}. Bodies with a known, small length are read in one
+     * go and parsed from a String, because the 8 KB decoder buffer behind a streaming reader
+     * would cost more than the body itself; anything else is decoded straight off the stream,
+     * read from under Spark's body cache (see {@link BackendServer#requestBody}).
+     */
+    public static <T> T read(spark.Request req, Class<T> type) throws IOException {
+        long length = req.raw().getContentLengthLong();
+        InputStream in = BackendServer.requestBody(req);
+        Reader reader = length >= 0 && length <= INLINE_BODY
+                ? new StringReader(new String(in.readNBytes((int) length), StandardCharsets.UTF_8))
+                : new InputStreamReader(in, StandardCharsets.UTF_8);
+        try (JsonReader r = new JsonReader(reader)) {
+            T value = GSON.getAdapter(type).read(r);
+            if (value == null) throw new JsonParseException("empty_body");
+            if (r.peek() != JsonToken.END_DOCUMENT) throw new JsonParseException("trailing_data");
+            return value;
+        } catch (IllegalStateException | NumberFormatException | EOFException | MalformedJsonException e) {
+            throw new JsonParseException(e.getMessage(), e);
+        }
+    }
+
+    /** Serializes {@code body} through its adapter into a buffer sized for the typical response. */
+    public static <T> String write(Class<T> type, T body, int sizeHint) throws IOException {
+        StringWriter out = new StringWriter(sizeHint);
+        GSON.getAdapter(type).write(new JsonWriter(out), body);
+        return out.toString();
+    }
+
+    /** The summary response, totals first; it is only ever written, so it has no adapter to read it back. */
+    public static String write(EmployeeSummary s) throws IOException {
+        StringWriter out = new StringWriter(96 * s.orders().length + 128);
+        JsonWriter w = new JsonWriter(out);
+        int totalOrders = 0;
+        double totalRevenue = 0;
+        int presentDays = 0;
+        for (int i = 0; i < s.orders().length; i++) {
+            totalOrders += s.orders()[i];
+            totalRevenue += s.revenue()[i];
+            if (s.present()[i]) presentDays++;
+        }
+        w.beginObject();
+        w.name("month").value(s.month().toString());
+        w.name("total_orders").value(totalOrders);
+        w.name("total_revenue").value(totalRevenue);
+        w.name("present_days").value(presentDays);
+        w.name("absent_days").value(s.orders().length - presentDays);
+        w.name("days").beginArray();
+        for (int i = 0; i < s.orders().length; i++) {
+            w.beginObject();
+            w.name("date").value(s.month().atDay(i + 1).toString());
+            w.name("orders").value(s.orders()[i]);
+            w.name("revenue").value(s.revenue()[i]);
+            w.name("present").value(s.present()[i]);
+            w.endObject();
+        }
+        w.endArray();
+        w.endObject();
+        return out.toString();
+    }
+
+    private static final class OrderRequestAdapter extends TypeAdapter<OrderRequest> {
+        @Override
+        public void write(JsonWriter w, OrderRequest value) throws IOException {
+            w.beginObject();
+            w.name("items").beginArray();
+            for (Checkout.Line line : value.items) {
+                w.beginObject();
+                w.name("id").value(line.itemId);
+                w.name("quantity").value(line.quantity);
+                w.endObject();
+            }
+            w.endArray();
+            w.name("payment").value(value.payment);
+            if (value.ref != null) w.name("ref").value(value.ref);
+            if (value.soldAt != null) w.name("sold_at").value(value.soldAt);
+            w.endObject();
+        }
+
+        @Override
+        public OrderRequest read(JsonReader r) throws IOException {
+            if (r.peek() == JsonToken.NULL) {
+                r.nextNull();
+                return null;
+            }
+            OrderRequest out = new OrderRequest();
+            r.beginObject();
+            while (r.hasNext()) {
+                switch (r.nextName()) {
+                    case "items" -> {
+                        r.beginArray();
+                        while (r.hasNext()) out.items.add(readLine(r));
+                        r.endArray();
+                    }
+                    case "payment" -> out.payment = r.nextDouble();
+                    case "ref" -> out.ref = r.nextString();
+                    case "sold_at" -> out.soldAt = r.nextString();
+                    default -> r.skipValue();
+                }
+            }
+            r.endObject();
+            return out;
+        }
+
+        private static Checkout.Line readLine(JsonReader r) throws IOException {
+            Integer id = null;
+            int quantity = 0;
+            r.beginObject();
+            while (r.hasNext()) {
+                switch (r.nextName()) {
+                    case "id" -> id = r.nextInt();
+                    case "quantity" -> quantity = r.nextInt();
+                    default -> r.skipValue();
+                }
+            }
+            r.endObject();
+            if (id == null) throw new JsonParseException("missing_item_id");
+            return new Checkout.Line(id, quantity);
+        }
+    }
+
+    private static final class OrderBatchAdapter extends TypeAdapter<OrderBatch> {
+        private final OrderRequestAdapter order = new OrderRequestAdapter();
+
+        @Override
+        public void write(JsonWriter w, OrderBatch value) throws IOException {
+            w.beginObject();
+            w.name("mode").value(value.mode);
+            w.name("orders").beginArray();
+            for (OrderRequest o : value.orders) order.write(w, o);
+            w.endArray();
+            w.endObject();
+        }
+
+        @Override
+        public OrderBatch read(JsonReader r) throws IOException {
+            if (r.peek() == JsonToken.NULL) {
+                r.nextNull();
+                return null;
+            }
+            OrderBatch out = new OrderBatch();
+            r.beginObject();
+            while (r.hasNext()) {
+                switch (r.nextName()) {
+                    case "mode" -> out.mode = r.nextString();
+                    case "orders" -> {
+                        r.beginArray();
+                        while (r.hasNext()) {
+                            OrderRequest o = order.read(r);
+                            if (o == null) throw new JsonParseException("null_order");
+                            out.orders.add(o);
+                        }
+                        r.endArray();
+                    }
+                    default -> r.skipValue();
+                }
+            }
+            r.endObject();
+            return out;
+        }
+    }
+
+    private static final class OrderResultAdapter extends TypeAdapter<OrderResult> {
+        @Override
+        public void write(JsonWriter w, OrderResult value) throws IOException {
+            w.beginObject();
+            w.name("order_id").value(value.orderId());
+            w.name("total").value(value.total());
+            w.name("change").value(value.change());
+            w.endObject();
+        }
+
+        @Override
+        public OrderResult read(JsonReader r) throws IOException {
+            int orderId = 0;
+            double total = 0;
+            double change = 0;
+            r.beginObject();
+            while (r.hasNext()) {
+                switch (r.nextName()) {
+                    case "order_id" -> orderId = r.nextInt();
+                    case "total" -> total = r.nextDouble();
+                    case "change" -> change = r.nextDouble();
+                    default -> r.skipValue();
+                }
+            }
+            r.endObject();
+            return new OrderResult(orderId, total, change);
+        }
+    }
+
+    private static final class ItemRequestAdapter extends TypeAdapter<ItemRequest> {
+        @Override
+        public void write(JsonWriter w, ItemRequest value) throws IOException {
+            w.beginObject();
+            w.name("name").value(value.name);
+            w.name("price").value(value.price);
+            w.name("stock").value(value.stock);
+            w.endObject();
+        }
+
+        @Override
+        public ItemRequest read(JsonReader r) throws IOException {
+            if (r.peek() == JsonToken.NULL) {
+                r.nextNull();
+                return null;
+            }
+            ItemRequest out = new ItemRequest();
+            boolean price = false;
+            boolean stock = false;
+            r.beginObject();
+            while (r.hasNext()) {
+                switch (r.nextName()) {
+                    case "name" -> out.name = r.nextString();
+                    case "price" -> {
+                        out.price = r.nextDouble();
+                        price = true;
+                    }
+                    case "stock" -> {
+                        out.stock = r.nextInt();
+                        stock = true;
+                    }
+                    default -> r.skipValue();
+                }
+            }
+            r.endObject();
+            if (out.name == null || !price || !stock) throw new JsonParseException("missing_field");
+            return out;
+        }
+    }
+}
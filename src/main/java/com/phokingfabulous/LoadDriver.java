@@ -0,0 +1,248 @@
+package com.phokingfabulous;
+
+import com.google.gson.GsonBuilder;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a running backend through ApiClient the way a row of POS terminals would. Requests
+ * arrive on an open-loop schedule (Poisson arrivals at {@code rate} per second) regardless of how
+ * fast the server answers, and each one is timed from when it was due, not when a terminal got to
+ * it, so queueing behind a slow server shows up in the latency instead of quietly lowering the
+ * request rate.
+ *
+ * <pre>gradle loadTest -Dphoking.load.rate=50 -Dphoking.load.terminals=16 -Dphoking.load.seconds=120</pre>
+ *
+ * Terminals log in as the seeder's cashiers ({@code cashier1..N}).
+ */
+public class LoadDriver {
+    private static final String URL = System.getProperty("phoking.load.url", "http://localhost:4567");
+    private static final int TERMINALS = Integer.getInteger("phoking.load.terminals", 8);
+    private static final double RATE = Double.parseDouble(System.getProperty("phoking.load.rate", "20"));
+    private static final int SECONDS = Integer.getInteger("phoking.load.seconds", 60);
+    private static final int WARMUP_SECONDS = Integer.getInteger("phoking.load.warmupSeconds", 5);
+    private static final int CASHIERS = Integer.getInteger("phoking.seed.cashiers", 12);
+    private static final String MIX = System.getProperty("phoking.load.mix", "order:70,items:10,daily:8,orders_page:6,range:3,summary:3");
+    private static final String OUT = System.getProperty("phoking.load.out");
+
+    private record Op(String endpoint, long dueNanos, boolean measured) {
+    }
+
+    /** Latencies for one endpoint, kept whole so percentiles are exact. */
+    static final class Recorder {
+        private long[] nanos = new long[1024];
+        private int count;
+        private int errors;
+
+        synchronized void record(long latency, boolean ok) {
+            if (!ok) errors++;
+            if (count == nanos.length) nanos = Arrays.copyOf(nanos, count * 2);
+            nanos[count++] = latency;
+        }
+
+        synchronized Map<String, Object> summary(double seconds) {
+            long[] sorted = Arrays.copyOf(nanos, count);
+            Arrays.sort(sorted);
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("requests", count);
+            m.put("errors", errors);
+            m.put("throughput", count / seconds);
+            m.put("p50_ms", percentile(sorted, 0.50));
+            m.put("p90_ms", percentile(sorted, 0.90));
+            m.put("p99_ms", percentile(sorted, 0.99));
+            m.put("p999_ms", percentile(sorted, 0.999));
+            m.put("max_ms", sorted.length == 0 ? 0.0 : sorted[sorted.length - 1] / 1e6);
+            return m;
+        }
+
+        private static double percentile(long[] sorted, double p) {
+            if (sorted.length == 0) return 0;
+            return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)] / 1e6;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String[] names = parseMix(MIX).keySet().toArray(new String[0]);
+        double[] cumulative = cumulative(parseMix(MIX).values());
+        Map<String, Recorder> recorders = new TreeMap<>();
+        for (String n : names) recorders.put(n, new Recorder());
+
+        ApiClient probe = new ApiClient(URL);
+        List<InventoryItem> catalog = probe.listItems();
+        if (catalog.isEmpty()) throw new IllegalStateException("no menu items at " + URL + "; run seedData first");
+        int[] employeeIds = employeeIds(probe);
+
+        BlockingQueue<Op> queue = new LinkedBlockingQueue<>();
+        List<Thread> terminals = new ArrayList<>();
+        for (int t = 0; t < TERMINALS; t++) {
+            Terminal terminal = new Terminal(t, queue, recorders, catalog, employeeIds);
+            terminal.login();
+            Thread thread = new Thread(terminal, "terminal-" + (t + 1));
+            thread.start();
+            terminals.add(thread);
+        }
+
+        System.out.printf("Driving %s: %.1f req/s for %d s (+%d s warm-up) across %d terminals%n",
+                URL, RATE, SECONDS, WARMUP_SECONDS, TERMINALS);
+        SplittableRandom rnd = new SplittableRandom();
+        long begin = System.nanoTime();
+        long measureFrom = begin + TimeUnit.SECONDS.toNanos(WARMUP_SECONDS);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(SECONDS);
+        double meanGap = 1e9 / RATE;
+        long due = begin;
+        int maxBacklog = 0;
+        while (true) {
+            due += (long) (-Math.log(1 - rnd.nextDouble()) * meanGap);
+            if (due >= end) break;
+            long wait = due - System.nanoTime();
+            if (wait > 0) LockSupport.parkNanos(wait);
+            queue.add(new Op(names[Seeder.pick(cumulative, rnd)], due, due >= measureFrom));
+            maxBacklog = Math.max(maxBacklog, queue.size());
+        }
+        for (int t = 0; t < TERMINALS; t++) queue.add(new Op(null, 0, false));
+        for (Thread thread : terminals) thread.join();
+        double elapsed = (System.nanoTime() - measureFrom) / 1e9;
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("url", URL);
+        report.put("target_rate", RATE);
+        report.put("terminals", TERMINALS);
+        report.put("seconds", elapsed);
+        report.put("max_backlog", maxBacklog);
+        Map<String, Object> endpoints = new LinkedHashMap<>();
+        System.out.printf("%n%-12s %8s %7s %9s %9s %9s %9s %9s %9s%n",
+                "endpoint", "requests", "errors", "req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (Map.Entry<String, Recorder> e : recorders.entrySet()) {
+            Map<String, Object> s = e.getValue().summary(elapsed);
+            endpoints.put(e.getKey(), s);
+            System.out.printf("%-12s %8d %7d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f%n", e.getKey(),
+                    s.get("requests"), s.get("errors"), s.get("throughput"), s.get("p50_ms"), s.get("p90_ms"),
+                    s.get("p99_ms"), s.get("p999_ms"), s.get("max_ms"));
+        }
+        System.out.printf("max backlog: %d requests waiting for a terminal%n", maxBacklog);
+        report.put("endpoints", endpoints);
+        if (OUT != null) {
+            Files.writeString(Paths.get(OUT), new GsonBuilder().setPrettyPrinting().create().toJson(report));
+            System.out.println("Report written to " + OUT);
+        }
+    }
+
+    private static Map<String, Double> parseMix(String mix) {
+        Map<String, Double> weights = new LinkedHashMap<>();
+        for (String part : mix.split(",")) {
+            String[] kv = part.trim().split(":");
+            weights.put(kv[0], Double.parseDouble(kv[1]));
+        }
+        return weights;
+    }
+
+    private static double[] cumulative(Collection<Double> weights) {
+        double[] cum = new double[weights.size()];
+        double sum = 0;
+        int i = 0;
+        for (double w : weights) cum[i++] = sum += w;
+        for (i = 0; i < cum.length; i++) cum[i] /= sum;
+        return cum;
+    }
+
+    private static int[] employeeIds(ApiClient api) throws Exception {
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 1; i <= CASHIERS; i++) {
+            var emp = api.getEmployeeByUsername("cashier" + i);
+            if (emp != null && emp.has("id")) ids.add(emp.get("id").getAsInt());
+        }
+        return ids.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static final class Terminal implements Runnable {
+        private final int index;
+        private final BlockingQueue<Op> queue;
+        private final Map<String, Recorder> recorders;
+        private final List<InventoryItem> catalog;
+        private final int[] employeeIds;
+        private final ApiClient api = new ApiClient(URL);
+        private final SplittableRandom rnd = new SplittableRandom();
+        private final double[] itemCum;
+
+        Terminal(int index, BlockingQueue<Op> queue, Map<String, Recorder> recorders, List<InventoryItem> catalog, int[] employeeIds) {
+            this.index = index;
+            this.queue = queue;
+            this.recorders = recorders;
+            this.catalog = catalog;
+            this.employeeIds = employeeIds;
+            this.itemCum = Seeder.zipf(catalog.size(), 1.1);
+        }
+
+        void login() throws Exception {
+            String username = "cashier" + (index % CASHIERS + 1);
+            for (int attempt = 0; !api.login(username, Seeder.PASSWORD); attempt++) {
+                if (attempt == 5) throw new IllegalStateException("login failed for " + username);
+                Thread.sleep(1000);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Op op;
+                try {
+                    op = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (op.endpoint() == null) return;
+                boolean ok;
+                try {
+                    ok = call(op.endpoint());
+                } catch (Exception e) {
+                    ok = false;
+                }
+                if (op.measured()) recorders.get(op.endpoint()).record(System.nanoTime() - op.dueNanos(), ok);
+            }
+        }
+
+        private boolean call(String endpoint) throws Exception {
+            LocalDate day = LocalDate.now().minusDays(rnd.nextInt(30));
+            switch (endpoint) {
+                case "order" -> {
+                    List<CartItem> cart = new ArrayList<>();
+                    int lines = 1 + rnd.nextInt(3);
+                    double total = 0;
+                    for (int i = 0; i < lines; i++) {
+                        InventoryItem inv = catalog.get(Seeder.pick(itemCum, rnd));
+                        cart.add(new CartItem(new MenuItem(inv.id, inv.name, inv.price)));
+                        total += inv.price;
+                    }
+                    return api.createOrder(cart, Math.ceil(total / 100) * 100, api.getToken()) != null;
+                }
+                case "items" -> {
+                    return !api.listItems().isEmpty();
+                }
+                case "daily" -> {
+                    return api.status("/reports/sales/daily?date=" + day) == 200;
+                }
+                case "monthly" -> {
+                    return api.status("/reports/sales/monthly?month=" + day.toString().substring(0, 7)) == 200;
+                }
+                case "orders_page" -> {
+                    return api.status("/reports/orders?date=" + day + "&limit=50") == 200;
+                }
+                case "range" -> {
+                    return api.status("/reports/sales/range?from=" + day.minusDays(30) + "&to=" + day + "&granularity=day") == 200;
+                }
+                case "summary" -> {
+                    if (employeeIds.length == 0) return false;
+                    return api.getEmployeeSummary(employeeIds[rnd.nextInt(employeeIds.length)], day.toString().substring(0, 7)) != null;
+                }
+                default -> throw new IllegalArgumentException("unknown endpoint in phoking.load.mix: " + endpoint);
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.phokingfabulous;
+
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.collections.transformation.FilteredList;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The POS menu behind App's ListView: items kept in id order and changed in place by id, so a
+ * price or stock update replaces one element and redraws one cell instead of rebuilding the
+ * list. The view shows {@link #visible()}, which narrows as the cashier types. FX thread only.
+ */
+public class MenuList {
+    private final ObservableList<InventoryItem> items = FXCollections.observableArrayList();
+    private final FilteredList<InventoryItem> visible = new FilteredList<>(items);
+
+    public ObservableList<InventoryItem> visible() {
+        return visible;
+    }
+
+    /** Replaces the menu. When the same ids come back in the same order only rows that differ are touched. */
+    public void setAll(List<InventoryItem> next) {
+        List<InventoryItem> sorted = new ArrayList<>(next);
+        sorted.sort(Comparator.comparingInt(it -> it.id));
+        boolean sameIds = sorted.size() == items.size();
+        for (int i = 0; sameIds && i < sorted.size(); i++) sameIds = sorted.get(i).id == items.get(i).id;
+        if (!sameIds) {
+            items.setAll(sorted);
+            return;
+        }
+        for (int i = 0; i < sorted.size(); i++) {
+            if (!same(items.get(i), sorted.get(i))) items.set(i, sorted.get(i));
+        }
+    }
+
+    /** Applies changed rows by id, as InventoryStream reports them; a null item is deleted. */
+    public void apply(Map<Integer, InventoryItem> rows) {
+        for (Map.Entry<Integer, InventoryItem> e : rows.entrySet()) {
+            int i = indexOf(e.getKey());
+            InventoryItem it = e.getValue();
+            if (it == null) {
+                if (i >= 0) items.remove(i);
+            } else if (i >= 0) {
+                items.set(i, it);
+            } else {
+                items.add(-i - 1, it);
+            }
+        }
+    }
+
+    /** Shows items whose name contains {@code query}, ignoring case, or whose id it is; blank shows all. */
+    public void filter(String query) {
+        String q = query == null ? "" : query.trim().toLowerCase(Locale.ROOT);
+        visible.setPredicate(q.isEmpty() ? null : it -> it.name.toLowerCase(Locale.ROOT).contains(q) || String.valueOf(it.id).equals(q));
+    }
+
+    /** Position of {@code id} in the id-ordered list, or {@code -(insertion point) - 1}. */
+    private int indexOf(int id) {
+        int lo = 0;
+        int hi = items.size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int midId = items.get(mid).id;
+            if (midId < id) lo = mid + 1;
+            else if (midId > id) hi = mid - 1;
+            else return mid;
+        }
+        return -lo - 1;
+    }
+
+    private static boolean same(InventoryItem a, InventoryItem b) {
+        return a.id == b.id && a.name.equals(b.name) && a.price == b.price && a.stock == b.stock;
+    }
+}
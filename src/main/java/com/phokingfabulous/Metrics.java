@@ -0,0 +1,193 @@
+package com.phokingfabulous;
+
+import spark.routematch.RouteMatch;
+
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request latency and database time per route and status, plus the pool, session and BCrypt
+ * gauges, rendered in the Prometheus text format for {@code GET /metrics}. Recording is a bucket
+ * scan and two LongAdder increments, so the hot path never takes a lock. Routes are labelled by
+ * their Spark pattern ({@code /employees/:id}), not the raw path, to keep the series count fixed.
+ */
+public class Metrics {
+    private static final double[] BUCKETS = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+    private static final long[] BOUNDS = new long[BUCKETS.length];
+    private static final String[] LABELS = new String[BUCKETS.length];
+    private static final String START = "metrics.start";
+
+    static {
+        for (int i = 0; i < BUCKETS.length; i++) {
+            BOUNDS[i] = (long) (BUCKETS[i] * 1e9);
+            LABELS[i] = BigDecimal.valueOf(BUCKETS[i]).stripTrailingZeros().toPlainString();
+        }
+    }
+
+    private record Key(String method, String route, int status) {
+    }
+
+    private static final class Histogram {
+        final LongAdder[] counts = new LongAdder[BUCKETS.length + 1];
+        final LongAdder sumNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < counts.length; i++) counts[i] = new LongAdder();
+        }
+
+        void record(long nanos) {
+            int i = 0;
+            while (i < BOUNDS.length && nanos > BOUNDS[i]) i++;
+            counts[i].increment();
+            sumNanos.add(nanos);
+        }
+    }
+
+    private static final Map<Key, Histogram> latency = new ConcurrentHashMap<>();
+    private static final Map<Key, Histogram> dbTime = new ConcurrentHashMap<>();
+    private static final AtomicInteger inFlight = new AtomicInteger();
+    private static final LongAdder statements = new LongAdder();
+    private static final ThreadLocal<long[]> requestDbNanos = ThreadLocal.withInitial(() -> new long[1]);
+    private static volatile List<String[]> routes;
+
+    public static void begin(spark.Request req) {
+        inFlight.incrementAndGet();
+        requestDbNanos.get()[0] = 0;
+        req.attribute(START, System.nanoTime());
+    }
+
+    /** Runs as an afterAfter filter, so it also sees halted, failed and unmatched requests. */
+    public static void end(spark.Request req, spark.Response res) {
+        Long start = req.attribute(START);
+        if (start == null) return;
+        long took = System.nanoTime() - start;
+        inFlight.decrementAndGet();
+        Key key = new Key(req.requestMethod(), route(req.requestMethod(), req.pathInfo()), res.raw().getStatus());
+        latency.computeIfAbsent(key, k -> new Histogram()).record(took);
+        dbTime.computeIfAbsent(key, k -> new Histogram()).record(requestDbNanos.get()[0]);
+    }
+
+    /** Called by Database around each statement execution on the request's thread. */
+    static void addDbTime(long nanos) {
+        requestDbNanos.get()[0] += nanos;
+        statements.increment();
+    }
+
+    /**
+     * Statement time recorded on this thread since the last call, which is then cleared. For a
+     * thread that runs statements on behalf of requests, such as the order writer, so the time
+     * can be handed back to them through {@link #chargeDbTime}.
+     */
+    static long takeDbTime() {
+        long[] t = requestDbNanos.get();
+        long nanos = t[0];
+        t[0] = 0;
+        return nanos;
+    }
+
+    /** Adds statement time another thread spent for the request on this thread. */
+    static void chargeDbTime(long nanos) {
+        requestDbNanos.get()[0] += nanos;
+    }
+
+    /**
+     * Fixes the route table once BackendServer has registered every route. Spark starts serving
+     * as soon as the first one is added, so until then each lookup reads the table afresh rather
+     * than keep a partial copy that would label later routes unmatched for good.
+     */
+    static void routesRegistered() {
+        routes = routeTable();
+    }
+
+    private static List<String[]> routeTable() {
+        List<String[]> known = new ArrayList<>();
+        for (RouteMatch m : spark.Spark.routes()) {
+            String verb = m.getHttpMethod().name();
+            if (verb.equals("before") || verb.equals("after") || verb.equals("afterafter")) continue;
+            known.add(new String[]{verb.toUpperCase(Locale.ROOT), m.getMatchUri()});
+        }
+        return known;
+    }
+
+    private static String route(String method, String path) {
+        List<String[]> known = routes;
+        if (known == null) known = routeTable();
+        String[] parts = path.split("/", -1);
+        for (String[] r : known) {
+            if (r[0].equals(method) && matches(r[1].split("/", -1), parts)) return r[1];
+        }
+        return "unmatched";
+    }
+
+    private static boolean matches(String[] pattern, String[] parts) {
+        for (int i = 0; i < pattern.length; i++) {
+            if (pattern[i].equals("*") && i == pattern.length - 1) return parts.length >= pattern.length;
+            if (i >= parts.length) return false;
+            if (!pattern[i].startsWith(":") && !pattern[i].equals("*") && !pattern[i].equals(parts[i])) return false;
+        }
+        return pattern.length == parts.length;
+    }
+
+    public static String scrape() {
+        StringBuilder out = new StringBuilder(16 * 1024);
+        histogram(out, "phoking_http_request_duration_seconds", "Time from the first filter to the last, by route and status.", latency);
+        histogram(out, "phoking_http_request_db_seconds", "Time spent executing SQL statements per request, by route and status; /orders includes its order writer group.", dbTime);
+        gauge(out, "phoking_http_requests_in_flight", "Requests currently being handled.", inFlight.get());
+        counter(out, "phoking_db_statements_total", "Prepared statements executed through the connection pool.", statements.sum());
+        stats(out, "phoking_db_pool_", Database.stats());
+        stats(out, "phoking_sessions_", SessionStore.stats());
+        stats(out, "phoking_bcrypt_", PasswordHasher.stats());
+        stats(out, "phoking_order_writer_", OrderWriter.stats());
+        stats(out, "phoking_stock_", StockLedger.stats());
+        stats(out, "phoking_stream_", CatalogStream.stats());
+        return out.toString();
+    }
+
+    private static void histogram(StringBuilder out, String name, String help, Map<Key, Histogram> series) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" histogram\n");
+        List<Map.Entry<Key, Histogram>> entries = new ArrayList<>(series.entrySet());
+        entries.sort(Comparator.comparing((Map.Entry<Key, Histogram> e) -> e.getKey().route())
+                .thenComparing(e -> e.getKey().method()).thenComparingInt(e -> e.getKey().status()));
+        for (Map.Entry<Key, Histogram> e : entries) {
+            Key k = e.getKey();
+            Histogram h = e.getValue();
+            String labels = "method=\"" + k.method() + "\",route=\"" + k.route() + "\",status=\"" + k.status() + "\"";
+            long cumulative = 0;
+            for (int i = 0; i < h.counts.length; i++) {
+                cumulative += h.counts[i].sum();
+                out.append(name).append("_bucket{").append(labels).append(",le=\"")
+                        .append(i < LABELS.length ? LABELS[i] : "+Inf").append("\"} ").append(cumulative).append('\n');
+            }
+            out.append(name).append("_sum{").append(labels).append("} ").append(h.sumNanos.sum() / 1e9).append('\n');
+            out.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+        }
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, Number value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, Number value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    /** Every numeric entry of a /stats map, as an untyped sample under {@code prefix}. */
+    private static void stats(StringBuilder out, String prefix, Map<String, Object> values) {
+        for (Map.Entry<String, Object> e : values.entrySet()) {
+            Object v = e.getValue();
+            if (v instanceof Boolean b) v = b ? 1 : 0;
+            if (!(v instanceof Number)) continue;
+            String name = prefix + e.getKey();
+            out.append("# TYPE ").append(name).append(" untyped\n");
+            out.append(name).append(' ').append(v).append('\n');
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package com.phokingfabulous;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sales rung up at this till, kept in an append-only file until the server has them. Checkout
+ * only waits for its record to reach the disk: one writer thread appends everything queued since
+ * its last write and fsyncs once for the lot, so a burst of sales shares a single flush. A second
+ * thread uploads pending sales oldest first in batches, each sale carrying a ref the server uses
+ * to recognise a retry, and backs off while the server is unreachable.
+ *
+ * Each line is one JSON record: a {@code sale} holding the order body and the cashier who rang
+ * it up, or a {@code synced} or {@code rejected} marker for an earlier sale. Opening the journal
+ * drops finished sales and any half-written last line.
+ *
+ * The server credits an order to whoever's token sends it, so a sale only goes up under its own
+ * cashier's session. Tokens are kept in memory, never in the file; a sale whose cashier has no
+ * live session here waits until they log in again.
+ */
+public class OrderJournal implements AutoCloseable {
+    private static final long SYNC_INTERVAL_MS = Long.getLong("phoking.journal.syncIntervalMs", 5_000);
+    private static final long MAX_BACKOFF_MS = Long.getLong("phoking.journal.maxBackoffMs", 60_000);
+    private static final int SYNC_BATCH = Integer.getInteger("phoking.journal.syncBatch", 50);
+
+    private record Append(String line, CompletableFuture<Void> done) {
+    }
+
+    private static final Append STOP = new Append(null, null);
+
+    private final ApiClient api;
+    private final Gson gson = new Gson();
+    private final FileChannel channel;
+    private final BlockingQueue<Append> queue = new LinkedBlockingQueue<>();
+    private final Map<String, JsonObject> pending = new LinkedHashMap<>();
+    private final Map<String, String> sessions = new HashMap<>();
+    private String lastSeenToken;
+    private final Semaphore wake = new Semaphore(0);
+    private final Thread writer;
+    private final Thread uploader;
+    private int rejected;
+    private long uploaded;
+    private long flushes;
+    private volatile Runnable listener = () -> { };
+    private volatile boolean closed;
+
+    public OrderJournal(Path file, ApiClient api) throws IOException {
+        this.api = api;
+        List<JsonObject> kept = replay(file);
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            StringBuilder sb = new StringBuilder();
+            for (JsonObject rec : kept) sb.append(gson.toJson(rec)).append('\n');
+            ByteBuffer buf = StandardCharsets.UTF_8.encode(sb.toString());
+            while (buf.hasRemaining()) out.write(buf);
+            out.force(false);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+        writer = new Thread(this::writeLoop, "order-journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+        uploader = new Thread(this::syncLoop, "order-journal-sync");
+        uploader.setDaemon(true);
+        uploader.start();
+    }
+
+    /** Records that survive compaction: unfinished sales, and refused ones with their reason. */
+    private List<JsonObject> replay(Path file) throws IOException {
+        Map<String, JsonObject> sales = new LinkedHashMap<>();
+        List<JsonObject> refusals = new ArrayList<>();
+        if (Files.exists(file)) {
+            try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    JsonObject rec;
+                    try {
+                        rec = gson.fromJson(line, JsonObject.class);
+                    } catch (JsonParseException e) {
+                        continue; // torn by a crash mid-write; its sale was never confirmed
+                    }
+                    if (rec == null || !rec.has("type") || !rec.has("ref")) continue;
+                    String ref = rec.get("ref").getAsString();
+                    switch (rec.get("type").getAsString()) {
+                        case "sale" -> sales.put(ref, rec);
+                        case "synced" -> sales.remove(ref);
+                        case "rejected" -> refusals.add(rec);
+                        default -> { }
+                    }
+                }
+            }
+        }
+        List<JsonObject> kept = new ArrayList<>();
+        for (JsonObject refusal : refusals) {
+            JsonObject sale = sales.remove(refusal.get("ref").getAsString());
+            if (sale == null) continue;
+            kept.add(sale);
+            kept.add(refusal);
+            rejected++;
+        }
+        pending.putAll(sales);
+        kept.addAll(sales.values());
+        return kept;
+    }
+
+    /**
+     * Journals a completed sale and returns once it is on disk; the upload happens later. The
+     * sale keeps the cashier and the time it was made, so it is credited to them at that time
+     * however late it reaches the server.
+     */
+    public CompletableFuture<Void> record(List<CartItem> items, double payment, ApiClient.Session cashier) {
+        String ref = UUID.randomUUID().toString();
+        JsonObject order = ApiClient.orderBody(items, payment);
+        order.addProperty("ref", ref);
+        order.addProperty("sold_at", LocalDateTime.now().truncatedTo(ChronoUnit.SECONDS).format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+        JsonObject sale = new JsonObject();
+        sale.addProperty("type", "sale");
+        sale.addProperty("ref", ref);
+        sale.addProperty("cashier", cashier.username());
+        sale.add("order", order);
+        return append(sale).thenRun(() -> {
+            synchronized (this) {
+                sessions.put(cashier.username(), cashier.token());
+                pending.put(ref, sale);
+            }
+            listener.run();
+            wake.release();
+        });
+    }
+
+    public synchronized int pending() {
+        return pending.size();
+    }
+
+    /** Sales the server refused, e.g. for stock that ran out meanwhile; they stay in the file for a manager to settle. */
+    public synchronized int rejected() {
+        return rejected;
+    }
+
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("pending", pending.size());
+        m.put("awaiting_login", pending.values().stream().filter(sale -> !sessions.containsKey(cashier(sale))).count());
+        m.put("rejected", rejected);
+        m.put("uploaded", uploaded);
+        m.put("flushes", flushes);
+        return m;
+    }
+
+    /** Runs on a journal thread whenever the pending or rejected count changes. */
+    public void onChange(Runnable listener) {
+        this.listener = listener;
+    }
+
+    /** Asks the sync thread to try now rather than at its next interval, e.g. after a login. */
+    public void syncNow() {
+        wake.release();
+    }
+
+    private synchronized CompletableFuture<Void> append(JsonObject rec) {
+        if (closed) return CompletableFuture.failedFuture(new IllegalStateException("journal closed"));
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        queue.add(new Append(gson.toJson(rec) + "\n", done));
+        return done;
+    }
+
+    private void writeLoop() {
+        List<Append> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+            boolean stop = batch.remove(STOP);
+            if (!batch.isEmpty()) {
+                StringBuilder sb = new StringBuilder();
+                for (Append a : batch) sb.append(a.line());
+                try {
+                    ByteBuffer buf = StandardCharsets.UTF_8.encode(sb.toString());
+                    while (buf.hasRemaining()) channel.write(buf);
+                    channel.force(false);
+                    synchronized (this) {
+                        flushes++;
+                    }
+                    for (Append a : batch) a.done().complete(null);
+                } catch (IOException e) {
+                    for (Append a : batch) a.done().completeExceptionally(e);
+                }
+                batch.clear();
+            }
+            if (stop) return;
+        }
+    }
+
+    private void syncLoop() {
+        long backoff = 0;
+        while (!closed) {
+            try {
+                if (backoff > 0) Thread.sleep(backoff);
+                else wake.tryAcquire(SYNC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            wake.drainPermits();
+            backoff = syncPending() ? 0 : Math.min(MAX_BACKOFF_MS, Math.max(1_000, backoff * 2));
+        }
+    }
+
+    /**
+     * Uploads pending sales oldest first through {@code /orders/batch}, up to {@code syncBatch}
+     * of one cashier's sales per request, skipping cashiers with no live session; false when the
+     * server could not take them.
+     */
+    private boolean syncPending() {
+        synchronized (this) {
+            ApiClient.Session current = api.session();
+            // Only a new login counts, so a token the server already refused is not tried again.
+            if (current != null && !current.token().equals(lastSeenToken)) {
+                sessions.put(current.username(), current.token());
+                lastSeenToken = current.token();
+            }
+        }
+        while (!closed) {
+            List<JsonObject> batch = new ArrayList<>();
+            String cashier = null;
+            String token = null;
+            synchronized (this) {
+                for (JsonObject sale : pending.values()) {
+                    String c = cashier(sale);
+                    if (cashier == null) {
+                        if (!sessions.containsKey(c)) continue;
+                        cashier = c;
+                        token = sessions.get(c);
+                    }
+                    if (!c.equals(cashier)) continue;
+                    batch.add(sale);
+                    if (batch.size() == SYNC_BATCH) break;
+                }
+            }
+            if (batch.isEmpty()) return true;
+            if (!upload(batch, cashier, token)) return false;
+        }
+        return false;
+    }
+
+    private static String cashier(JsonObject sale) {
+        return sale.has("cashier") ? sale.get("cashier").getAsString() : "";
+    }
+
+    private boolean upload(List<JsonObject> batch, String cashier, String token) {
+        List<JsonObject> orders = new ArrayList<>(batch.size());
+        for (JsonObject sale : batch) orders.add(sale.getAsJsonObject("order"));
+        ApiClient.Reply reply;
+        try {
+            reply = api.createOrders(orders, false, token);
+        } catch (Exception e) {
+            return false;
+        }
+        if (reply.status() == 401) {
+            // Their session ended; the sales wait for this cashier to log in again.
+            synchronized (this) {
+                sessions.remove(cashier, token);
+            }
+            listener.run();
+            return true;
+        }
+        if (reply.status() == 400) {
+            // The request as a whole was refused, e.g. more orders than the server's maxBatch. Halve
+            // it until the server takes it. A lone sale refused this way says nothing against the
+            // sale itself, only that the server will not take such requests now, so it stays
+            // pending and the sync backs off; only a refusal in the results rejects a sale.
+            if (batch.size() == 1) return false;
+            int half = batch.size() / 2;
+            return upload(batch.subList(0, half), cashier, token) && upload(batch.subList(half, batch.size()), cashier, token);
+        }
+        if (reply.status() != 200 || reply.body() == null || !reply.body().has("results")) return false;
+        JsonArray results = reply.body().getAsJsonArray("results");
+        if (results.size() != batch.size()) return false;
+        for (int i = 0; i < batch.size(); i++) {
+            JsonObject result = results.get(i).getAsJsonObject();
+            boolean accepted = result.get("status").getAsString().equals("accepted");
+            settle(batch.get(i), accepted, result.get(accepted ? "order_id" : "error"));
+        }
+        listener.run();
+        return true;
+    }
+
+    /** Marks a sale synced, with its order id, or rejected, with the server's reason. */
+    private void settle(JsonObject sale, boolean accepted, JsonElement detail) {
+        String ref = sale.get("ref").getAsString();
+        JsonObject marker = new JsonObject();
+        marker.addProperty("type", accepted ? "synced" : "rejected");
+        marker.addProperty("ref", ref);
+        marker.add(accepted ? "order_id" : "error", detail);
+        synchronized (this) {
+            pending.remove(ref);
+            if (accepted) uploaded++;
+            else rejected++;
+        }
+        // A marker lost to a crash only means the sale is sent again, and the server knows its ref.
+        append(marker);
+    }
+
+    /** Flushes whatever is queued and stops both threads; unsent sales are picked up on the next start. */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            queue.add(STOP);
+        }
+        uploader.interrupt();
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+}
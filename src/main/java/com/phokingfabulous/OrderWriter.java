@@ -0,0 +1,213 @@
+package com.phokingfabulous;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The single thread that writes checkouts. Request threads validate an order and hand it over,
+ * then wait on a future. Once the first order arrives the writer collects whatever else turns up
+ * within {@code phoking.orders.windowMicros}, up to {@code phoking.orders.maxGroup} orders, and
+ * writes the lot in one transaction, where a rejected order does not sink its neighbours and the
+ * group's rollup increments are merged into one upsert per key. A group that fails for any other
+ * reason is rolled back and its orders written again one transaction each, so only the order at
+ * fault sees the error. Futures complete only after the commit, which runs with
+ * {@code synchronous=FULL} so the order is on disk. A burst of checkouts thus pays for one write lock and one fsync instead of queueing for
+ * them one order at a time. The writer also settles each order's {@link StockLedger} reservation,
+ * since only it knows whether the order was written or turned out to be a resend.
+ *
+ * The default window is zero: a group is whatever queued up while the previous one was being
+ * written, which is already large under load and adds no delay when the shop is quiet. A
+ * positive window only pays off where the fsync is slow compared with the gap between orders.
+ */
+public class OrderWriter {
+    private static final long WINDOW_NANOS = TimeUnit.MICROSECONDS.toNanos(Long.getLong("phoking.orders.windowMicros", 0));
+    private static final int MAX_GROUP = Integer.getInteger("phoking.orders.maxGroup", 128);
+    private static final int QUEUE_SIZE = Integer.getInteger("phoking.orders.queueSize", 4096);
+    private static final String SYNCHRONOUS = System.getProperty("phoking.orders.synchronous", "FULL");
+
+    /**
+     * What became of a queued order: written by this call, or found already written under its ref.
+     * {@code dbNanos} is the statement time of the group it was written in, which ran on the
+     * writer's thread and so is missing from the request's own count.
+     */
+    public record Placed(Json.OrderResult result, boolean duplicate, long dbNanos) {
+    }
+
+    private record Pending(int cashierId, Json.OrderRequest order, List<Checkout.Line> lines, LocalDateTime soldAt,
+                           StockLedger.Reservation stock, CompletableFuture<Placed> result) {
+    }
+
+    private static final BlockingQueue<Pending> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private static final AtomicLong groups = new AtomicLong();
+    private static final AtomicLong written = new AtomicLong();
+    private static final AtomicLong rejected = new AtomicLong();
+    private static final AtomicLong failedGroups = new AtomicLong();
+    private static final AtomicLong failedOrders = new AtomicLong();
+    private static volatile int largestGroup;
+    private static volatile Thread thread;
+
+    public static synchronized void start() {
+        if (thread != null) return;
+        thread = new Thread(OrderWriter::run, "order-writer");
+        thread.setDaemon(true);
+        // Whatever is still queued is picked up by the replacement, so callers are not left waiting.
+        thread.setUncaughtExceptionHandler((t, e) -> restart(t));
+        thread.start();
+    }
+
+    private static synchronized void restart(Thread dead) {
+        if (thread != dead) return;
+        thread = null;
+        start();
+    }
+
+    /**
+     * Queues a validated order and waits for its group to commit. Blocks while the queue is full,
+     * which holds callers back instead of letting a backlog grow without bound. By the time this
+     * returns {@code stock} has been committed if the order was written and released otherwise;
+     * if it throws before the order was queued, releasing it is left to the caller. A
+     * {@link Checkout.Rejected} concerns this order alone; any other SQLException means it could
+     * not be written, even in a transaction of its own, and may be sent again.
+     */
+    public static Placed place(int cashierId, Json.OrderRequest order, List<Checkout.Line> lines, LocalDateTime soldAt,
+                                         StockLedger.Reservation stock) throws SQLException {
+        if (thread == null) start();
+        CompletableFuture<Placed> result = new CompletableFuture<>();
+        try {
+            queue.put(new Pending(cashierId, order, lines, soldAt, stock, result));
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted waiting for the order writer", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException se) throw se;
+            throw new SQLException(e.getCause());
+        }
+    }
+
+    public static Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("queued", queue.size());
+        m.put("groups", groups.get());
+        m.put("orders", written.get());
+        m.put("rejected", rejected.get());
+        m.put("failed_groups", failedGroups.get());
+        m.put("failed_orders", failedOrders.get());
+        m.put("largest_group", largestGroup);
+        return m;
+    }
+
+    private static void run() {
+        List<Pending> group = new ArrayList<>(MAX_GROUP);
+        while (true) {
+            try {
+                group.add(queue.take());
+                long deadline = System.nanoTime() + WINDOW_NANOS;
+                while (group.size() < MAX_GROUP) {
+                    queue.drainTo(group, MAX_GROUP - group.size());
+                    long left = deadline - System.nanoTime();
+                    if (group.size() >= MAX_GROUP || left <= 0) break;
+                    Pending next = queue.poll(left, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    group.add(next);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                write(group);
+            } catch (Throwable t) {
+                // Not one of the failures write() answers itself; fail the group and keep writing.
+                for (Pending p : group) {
+                    p.stock().release();
+                    p.result().completeExceptionally(t);
+                }
+            }
+            group.clear();
+        }
+    }
+
+    private static void write(List<Pending> group) {
+        Object[] outcomes = new Object[group.size()];
+        boolean[] placed = new boolean[group.size()];
+        Rollups.Batch rollups = new Rollups.Batch();
+        int accepted = 0;
+        boolean committed = false;
+        Metrics.takeDbTime();
+        try (Connection c = Database.get()) {
+            try (Statement st = c.createStatement()) {
+                st.execute("PRAGMA synchronous = " + SYNCHRONOUS);
+            }
+            c.setAutoCommit(false);
+            try {
+                for (int i = 0; i < group.size(); i++) {
+                    Pending p = group.get(i);
+                    try {
+                        // A till may resend a sale that an earlier group, or this one, already wrote.
+                        Json.OrderResult done = Checkout.existing(c, p.order().ref, p.order().payment);
+                        placed[i] = done == null;
+                        outcomes[i] = placed[i] ? new Placed(Checkout.place(c, p.cashierId(), p.order(), p.lines(), p.soldAt(), rollups), false, 0)
+                                : new Placed(done, true, 0);
+                        accepted++;
+                    } catch (Checkout.Rejected e) {
+                        outcomes[i] = e;
+                    }
+                }
+                rollups.flush(c);
+                c.commit();
+                committed = true;
+                // Settled while this connection still holds the writer permit: a PUT /inventory/items
+                // that flushes these orders into menu_items must not also find them still reserved.
+                for (int i = 0; i < group.size(); i++) {
+                    if (placed[i] && outcomes[i] instanceof Placed) group.get(i).stock().commit();
+                    else group.get(i).stock().release();
+                }
+            } catch (SQLException | RuntimeException e) {
+                // Before setAutoCommit(true) below, which would otherwise commit what was written so far.
+                if (!committed) c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+                try (Statement st = c.createStatement()) {
+                    st.execute("PRAGMA synchronous = NORMAL");
+                }
+            }
+        } catch (SQLException | RuntimeException e) {
+            // Past the commit only putting the connection back failed; the orders are written.
+            if (!committed) {
+                failedGroups.incrementAndGet();
+                if (group.size() > 1) {
+                    for (Pending p : group) write(List.of(p));
+                    return;
+                }
+                failedOrders.incrementAndGet();
+                group.get(0).stock().release();
+                group.get(0).result().completeExceptionally(e);
+                return;
+            }
+        }
+        if (accepted > 0) Catalog.invalidate();
+        groups.incrementAndGet();
+        written.addAndGet(accepted);
+        rejected.addAndGet(group.size() - accepted);
+        if (group.size() > largestGroup) largestGroup = group.size();
+        long dbNanos = Metrics.takeDbTime();
+        for (int i = 0; i < group.size(); i++) {
+            Pending p = group.get(i);
+            if (outcomes[i] instanceof Placed r) p.result().complete(new Placed(r.result(), r.duplicate(), dbNanos));
+            else p.result().completeExceptionally((Checkout.Rejected) outcomes[i]);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.phokingfabulous;
+
+import org.mindrot.jbcrypt.BCrypt;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs BCrypt on its own small pool so a burst of logins cannot occupy every request thread.
+ * When the pool and its queue are full, callers get {@link Busy} straight away instead of
+ * waiting behind the burst; BackendServer turns that into a 503 with Retry-After.
+ */
+public class PasswordHasher {
+    static final int COST = Integer.getInteger("phoking.bcrypt.cost", 10);
+    private static final int THREADS = Integer.getInteger("phoking.bcrypt.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    private static final int QUEUE = Integer.getInteger("phoking.bcrypt.queue", 32);
+    private static final long TIMEOUT_MS = Long.getLong("phoking.bcrypt.timeoutMs", 10_000);
+
+    private static final AtomicLong completed = new AtomicLong();
+    private static final AtomicLong rejected = new AtomicLong();
+    private static final AtomicLong rehashed = new AtomicLong();
+    private static final AtomicLong totalNanos = new AtomicLong();
+    private static final AtomicLong maxNanos = new AtomicLong();
+    private static final AtomicLong totalWaitNanos = new AtomicLong();
+    private static final ThreadPoolExecutor pool = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(QUEUE), new ThreadFactory() {
+        private final AtomicInteger n = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "bcrypt-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    public static class Busy extends Exception {
+        public Busy() {
+            super("auth_busy");
+        }
+    }
+
+    public static String hash(String password) throws Busy {
+        return run(() -> BCrypt.hashpw(password, BCrypt.gensalt(COST)));
+    }
+
+    public static boolean check(String password, String hash) throws Busy {
+        return run(() -> BCrypt.checkpw(password, hash));
+    }
+
+    /** True when {@code hash} was made with a different cost than the configured one. */
+    public static boolean needsRehash(String hash) {
+        try {
+            return Integer.parseInt(hash.substring(4, 6)) != COST;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Re-hashes a password that just verified against an old-cost hash, off the login path. The
+     * update only applies if the stored hash is still the one that was checked.
+     */
+    public static void rehashLater(int userId, String password, String oldHash) {
+        try {
+            pool.execute(() -> {
+                try {
+                    String fresh = BCrypt.hashpw(password, BCrypt.gensalt(COST));
+                    try (Connection c = Database.get(); PreparedStatement ps = c.prepareStatement(
+                            "UPDATE users SET password_hash=? WHERE id=? AND password_hash=?")) {
+                        ps.setString(1, fresh);
+                        ps.setInt(2, userId);
+                        ps.setString(3, oldHash);
+                        if (ps.executeUpdate() == 1) rehashed.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    System.err.println("Password rehash failed for user " + userId + ": " + e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Busy now; the next login will try again.
+        }
+    }
+
+    private static <T> T run(Callable<T> work) throws Busy {
+        long queued = System.nanoTime();
+        Future<T> f;
+        try {
+            f = pool.submit(() -> {
+                long start = System.nanoTime();
+                totalWaitNanos.addAndGet(start - queued);
+                try {
+                    return work.call();
+                } finally {
+                    long took = System.nanoTime() - start;
+                    totalNanos.addAndGet(took);
+                    maxNanos.accumulateAndGet(took, Math::max);
+                    completed.incrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw new Busy();
+        }
+        try {
+            return f.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            f.cancel(false);
+            rejected.incrementAndGet();
+            throw new Busy();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Busy();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException re) throw re;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    public static Map<String, Object> stats() {
+        long done = completed.get();
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("cost", COST);
+        m.put("threads", THREADS);
+        m.put("active", pool.getActiveCount());
+        m.put("queued", pool.getQueue().size());
+        m.put("queue_capacity", QUEUE);
+        m.put("completed", done);
+        m.put("rejected", rejected.get());
+        m.put("rehashed", rehashed.get());
+        m.put("avg_hash_ms", done == 0 ? 0.0 : totalNanos.get() / 1e6 / done);
+        m.put("max_hash_ms", maxNanos.get() / 1e6);
+        m.put("avg_wait_ms", done == 0 ? 0.0 : totalWaitNanos.get() / 1e6 / done);
+        return m;
+    }
+}
@@ -0,0 +1,245 @@
+package com.phokingfabulous;
+
+import org.eclipse.jetty.server.HttpOutput;
+
+import javax.imageio.ImageIO;
+import javax.servlet.ServletOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.*;
+import java.time.LocalDateTime;
+import java.util.HexFormat;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Employee photos, stored once per content under {@code uploads/<sha256>.<ext>}. An upload is
+ * copied from the request stream to a temp file in fixed-size chunks while it is hashed, then
+ * renamed into place, so the photo is never held in memory whole.
+ */
+public class PhotoStore {
+    static final Path DIR = Paths.get(System.getProperty("phoking.uploads", "uploads"));
+    static final long MAX_BYTES = Long.getLong("phoking.uploads.maxBytes", 10L * 1024 * 1024);
+    static final int THUMB_SIZE = Integer.getInteger("phoking.uploads.thumbSize", 128);
+    private static final long MAP_THRESHOLD = 64 * 1024;
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+    public record Photo(String id, Path path, String contentType, long size) {
+    }
+
+    public static class Rejected extends IOException {
+        public final int status;
+
+        Rejected(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    static void createTable(Statement st) throws SQLException {
+        st.executeUpdate("CREATE TABLE IF NOT EXISTS photos (" +
+                "id TEXT PRIMARY KEY, " +
+                "path TEXT NOT NULL, " +
+                "content_type TEXT NOT NULL, " +
+                "size INTEGER NOT NULL, " +
+                "created_at TEXT NOT NULL)");
+    }
+
+    public static Photo store(InputStream body, long declaredLength) throws IOException, SQLException {
+        if (declaredLength > MAX_BYTES) throw new Rejected(413, "photo_too_large");
+        Path tmpDir = DIR.resolve("tmp");
+        Files.createDirectories(tmpDir);
+        Path tmp = Files.createTempFile(tmpDir, "upload", ".part");
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+            byte[] head = new byte[12];
+            long size = 0;
+            try (ReadableByteChannel in = Channels.newChannel(body);
+                 FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    if (n == 0) continue;
+                    if (size < head.length) System.arraycopy(buf.array(), 0, head, (int) size, (int) Math.min(n, head.length - size));
+                    size += n;
+                    if (size > MAX_BYTES) throw new Rejected(413, "photo_too_large");
+                    sha.update(buf.array(), 0, buf.position());
+                    buf.flip();
+                    while (buf.hasRemaining()) out.write(buf);
+                    buf.clear();
+                }
+                out.force(true);
+            }
+            String ext = sniff(head, size);
+            if (ext == null) throw new Rejected(415, "unsupported_image_type");
+            String id = HexFormat.of().formatHex(sha.digest());
+            Path target = DIR.resolve(id + "." + ext);
+            if (Files.exists(target)) {
+                Files.delete(tmp);
+            } else {
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+            }
+            Photo photo = new Photo(id, target, ext.equals("png") ? "image/png" : "image/jpeg", size);
+            try (Connection c = Database.get(); PreparedStatement ps = c.prepareStatement(
+                    "INSERT INTO photos(id,path,content_type,size,created_at) VALUES(?,?,?,?,?) ON CONFLICT(id) DO NOTHING")) {
+                ps.setString(1, photo.id());
+                ps.setString(2, photo.path().toString());
+                ps.setString(3, photo.contentType());
+                ps.setLong(4, photo.size());
+                ps.setString(5, LocalDateTime.now().toString());
+                ps.executeUpdate();
+            }
+            return photo;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /** Photo registered under {@code id} on this connection, or null. */
+    public static Photo find(Connection c, String id) throws SQLException {
+        try (PreparedStatement ps = c.prepareStatement("SELECT id,path,content_type,size FROM photos WHERE id=?")) {
+            ps.setString(1, id);
+            ResultSet rs = ps.executeQuery();
+            if (!rs.next()) return null;
+            return new Photo(rs.getString("id"), Paths.get(rs.getString("path")), rs.getString("content_type"), rs.getLong("size"));
+        }
+    }
+
+    private static String sniff(byte[] head, long size) {
+        if (size >= 8 && (head[0] & 0xff) == 0x89 && head[1] == 'P' && head[2] == 'N' && head[3] == 'G'
+                && head[4] == 0x0d && head[5] == 0x0a && head[6] == 0x1a && head[7] == 0x0a) return "png";
+        if (size >= 3 && (head[0] & 0xff) == 0xff && (head[1] & 0xff) == 0xd8 && (head[2] & 0xff) == 0xff) return "jpg";
+        return null;
+    }
+
+    /**
+     * Writes {@code file} to the response, honouring If-None-Match and a single byte range.
+     * Larger files are memory-mapped and handed to Jetty, which writes the mapping to the socket
+     * without copying it onto the heap.
+     */
+    public static String serve(Path file, String contentType, String etag, spark.Request req, spark.Response res) throws IOException {
+        res.header("ETag", etag);
+        res.header("Accept-Ranges", "bytes");
+        res.header("Cache-Control", "private, max-age=86400");
+        String inm = req.headers("If-None-Match");
+        if (inm != null && (inm.contains(etag) || inm.trim().equals("*"))) {
+            res.status(304);
+            return "";
+        }
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long length = ch.size();
+            long start = 0;
+            long end = length - 1;
+            boolean partial = false;
+            String range = req.headers("Range");
+            String ifRange = req.headers("If-Range");
+            if (range != null && (ifRange == null || ifRange.equals(etag))) {
+                Matcher m = RANGE.matcher(range.trim());
+                if (m.matches() && !(m.group(1).isEmpty() && m.group(2).isEmpty())) {
+                    if (m.group(1).isEmpty()) {
+                        start = Math.max(0, length - position(m.group(2)));
+                    } else {
+                        start = position(m.group(1));
+                        if (!m.group(2).isEmpty()) end = Math.min(end, position(m.group(2)));
+                    }
+                    if (start >= length || start > end) {
+                        res.status(416);
+                        res.header("Content-Range", "bytes */" + length);
+                        return "";
+                    }
+                    partial = true;
+                    res.header("Content-Range", "bytes " + start + "-" + end + "/" + length);
+                }
+            }
+            res.status(partial ? 206 : 200);
+            long count = length == 0 ? 0 : end - start + 1;
+            res.type(contentType);
+            res.raw().setContentLengthLong(count);
+            ServletOutputStream out = res.raw().getOutputStream();
+            if (count >= MAP_THRESHOLD && out instanceof HttpOutput jetty) {
+                jetty.sendContent(ch.map(FileChannel.MapMode.READ_ONLY, start, count));
+            } else {
+                ByteBuffer buf = ByteBuffer.allocate((int) Math.min(count, MAP_THRESHOLD));
+                long pos = start;
+                while (pos <= end && count > 0) {
+                    buf.clear();
+                    int n = ch.read(buf, pos);
+                    if (n < 0) break;
+                    out.write(buf.array(), 0, (int) Math.min(n, end - pos + 1));
+                    pos += n;
+                }
+                out.flush();
+            }
+        }
+        return "";
+    }
+
+    /**
+     * A byte position from a Range header. Digits past what a long holds are still a position,
+     * just one beyond any file, so a start there is unsatisfiable and an end or suffix there
+     * covers the whole photo.
+     */
+    private static long position(String digits) {
+        try {
+            return Long.parseLong(digits);
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /** A PNG no larger than {@link #THUMB_SIZE} on either side, made on first request and kept under uploads/thumbs. */
+    public static Path thumbnail(Path original, String key) throws IOException {
+        Path dir = DIR.resolve("thumbs");
+        Path thumb = dir.resolve(key + "-" + THUMB_SIZE + ".png");
+        if (Files.exists(thumb)) return thumb;
+        BufferedImage src = ImageIO.read(original.toFile());
+        if (src == null) throw new IOException("unreadable_image");
+        double scale = Math.min(1.0, (double) THUMB_SIZE / Math.max(src.getWidth(), src.getHeight()));
+        int w = Math.max(1, (int) Math.round(src.getWidth() * scale));
+        int h = Math.max(1, (int) Math.round(src.getHeight() * scale));
+        BufferedImage out = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = out.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(src, 0, 0, w, h, null);
+        } finally {
+            g.dispose();
+        }
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, key, ".part");
+        try {
+            ImageIO.write(out, "png", tmp.toFile());
+            Files.move(tmp, thumb, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return thumb;
+    }
+
+    /** Strong validator for a stored photo: its content hash when the name is one, else size and mtime. */
+    public static String etag(Path file) throws IOException {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String base = dot < 0 ? name : name.substring(0, dot);
+        if (base.length() == 64 && base.chars().allMatch(ch -> Character.digit(ch, 16) >= 0)) return base;
+        return Long.toHexString(Files.size(file)) + "-" + Long.toHexString(Files.getLastModifiedTime(file).toMillis());
+    }
+
+    public static String contentType(Path file) {
+        String name = file.getFileName().toString().toLowerCase();
+        return name.endsWith(".jpg") || name.endsWith(".jpeg") ? "image/jpeg" : "image/png";
+    }
+}
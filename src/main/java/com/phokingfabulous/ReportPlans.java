@@ -0,0 +1,53 @@
+package com.phokingfabulous;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks that no report reads all of orders or order_items. Runs EXPLAIN QUERY PLAN on every
+ * report query against the migrated schema and fails if any step is a full SCAN of a table, or
+ * a walk of its rowids, rather than a SEARCH through an index or primary key, or if it sorts its
+ * rows in a temp B-tree, which reads every match before the first page can be sent.
+ *
+ * <pre>gradle reportPlans -Dphoking.db=/tmp/plans.db</pre>
+ */
+public class ReportPlans {
+    public static void main(String[] args) throws SQLException {
+        Database.init();
+        Map<String, String> reports = new LinkedHashMap<>();
+        reports.put("GET /reports/sales/daily", BackendServer.DAILY_REVENUE);
+        reports.put("GET /reports/sales/monthly", BackendServer.MONTHLY_REVENUE);
+        reports.put("GET /reports/sales/range?granularity=hour", SalesRange.HOURLY);
+        reports.put("GET /reports/sales/range?granularity=day|week|month", SalesRange.DAILY);
+        reports.put("GET /reports/orders", BackendServer.ORDERS_ON_DAY);
+        reports.put("GET /employees/:id/orders", BackendServer.CASHIER_ORDERS);
+        reports.put("GET /employees/:id/summary", BackendServer.CASHIER_DAYS);
+
+        List<String> scans = new ArrayList<>();
+        try (Connection c = Database.get(); Statement st = c.createStatement()) {
+            for (Map.Entry<String, String> r : reports.entrySet()) {
+                System.out.println(r.getKey());
+                try (ResultSet rs = st.executeQuery("EXPLAIN QUERY PLAN " + r.getValue())) {
+                    while (rs.next()) {
+                        String detail = rs.getString("detail");
+                        // A rowid range alone is a scan too: with no after_id the bound is the whole table.
+                        boolean scan = detail.startsWith("SCAN ") && !detail.equals("SCAN CONSTANT ROW")
+                                || detail.matches("SEARCH \\S+ USING INTEGER PRIMARY KEY \\(rowid[<>]=?\\?\\)");
+                        boolean sort = detail.startsWith("USE TEMP B-TREE");
+                        System.out.println("  " + detail + (scan ? "   <-- full scan" : sort ? "   <-- sorts every match" : ""));
+                        if (scan || sort) scans.add(r.getKey() + ": " + detail);
+                    }
+                }
+            }
+        }
+        if (!scans.isEmpty()) {
+            System.out.println(scans.size() + " report step(s) scan a whole table or sort every match:");
+            scans.forEach(s -> System.out.println("  " + s));
+            System.exit(1);
+        }
+        System.out.println(reports.size() + " reports, no full scans or sorts");
+    }
+}
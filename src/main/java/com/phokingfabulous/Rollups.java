@@ -0,0 +1,165 @@
+package com.phokingfabulous;
+
+import java.sql.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per-day, per-month and per-cashier-per-day sales totals. {@link #record} runs inside the
+ * order's own transaction, so the rollups never disagree with the orders table; {@link #rebuild}
+ * recomputes them from scratch for data written before the rollups existed.
+ */
+public class Rollups {
+    static void createTables(Statement st) throws SQLException {
+        st.executeUpdate("CREATE TABLE IF NOT EXISTS sales_daily (" +
+                "day TEXT PRIMARY KEY, " +
+                "orders INTEGER NOT NULL, " +
+                "revenue REAL NOT NULL, " +
+                "items INTEGER NOT NULL)");
+
+        st.executeUpdate("CREATE TABLE IF NOT EXISTS sales_monthly (" +
+                "month TEXT PRIMARY KEY, " +
+                "orders INTEGER NOT NULL, " +
+                "revenue REAL NOT NULL, " +
+                "items INTEGER NOT NULL)");
+
+        st.executeUpdate("CREATE TABLE IF NOT EXISTS sales_cashier_daily (" +
+                "cashier_id INTEGER NOT NULL, " +
+                "day TEXT NOT NULL, " +
+                "orders INTEGER NOT NULL, " +
+                "revenue REAL NOT NULL, " +
+                "items INTEGER NOT NULL, " +
+                "PRIMARY KEY(cashier_id, day)) WITHOUT ROWID");
+    }
+
+    public static void record(Connection c, int cashierId, String createdAt, double total, int items) throws SQLException {
+        String day = createdAt.substring(0, 10);
+        try (PreparedStatement ps = c.prepareStatement(
+                "INSERT INTO sales_daily(day,orders,revenue,items) VALUES(?,1,?,?) " +
+                        "ON CONFLICT(day) DO UPDATE SET orders=orders+1, revenue=revenue+excluded.revenue, items=items+excluded.items")) {
+            ps.setString(1, day);
+            ps.setDouble(2, total);
+            ps.setInt(3, items);
+            ps.executeUpdate();
+        }
+        try (PreparedStatement ps = c.prepareStatement(
+                "INSERT INTO sales_monthly(month,orders,revenue,items) VALUES(?,1,?,?) " +
+                        "ON CONFLICT(month) DO UPDATE SET orders=orders+1, revenue=revenue+excluded.revenue, items=items+excluded.items")) {
+            ps.setString(1, createdAt.substring(0, 7));
+            ps.setDouble(2, total);
+            ps.setInt(3, items);
+            ps.executeUpdate();
+        }
+        try (PreparedStatement ps = c.prepareStatement(
+                "INSERT INTO sales_cashier_daily(cashier_id,day,orders,revenue,items) VALUES(?,?,1,?,?) " +
+                        "ON CONFLICT(cashier_id,day) DO UPDATE SET orders=orders+1, revenue=revenue+excluded.revenue, items=items+excluded.items")) {
+            ps.setInt(1, cashierId);
+            ps.setString(2, day);
+            ps.setDouble(3, total);
+            ps.setInt(4, items);
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * Rollup increments gathered over many orders in one transaction and written with one upsert
+     * per day, month and cashier-day, instead of three upserts per order.
+     */
+    public static final class Batch {
+        private record CashierDay(int cashierId, String day) {
+        }
+
+        private final Map<String, double[]> daily = new HashMap<>();
+        private final Map<String, double[]> monthly = new HashMap<>();
+        private final Map<CashierDay, double[]> cashierDaily = new HashMap<>();
+
+        public void add(int cashierId, String createdAt, double total, int items) {
+            String day = createdAt.substring(0, 10);
+            bump(daily.computeIfAbsent(day, k -> new double[3]), total, items);
+            bump(monthly.computeIfAbsent(createdAt.substring(0, 7), k -> new double[3]), total, items);
+            bump(cashierDaily.computeIfAbsent(new CashierDay(cashierId, day), k -> new double[3]), total, items);
+        }
+
+        private static void bump(double[] sums, double total, int items) {
+            sums[0]++;
+            sums[1] += total;
+            sums[2] += items;
+        }
+
+        /** Writes the gathered increments in the caller's transaction and starts over. */
+        public void flush(Connection c) throws SQLException {
+            if (daily.isEmpty()) return;
+            try (PreparedStatement ps = c.prepareStatement(
+                    "INSERT INTO sales_daily(day,orders,revenue,items) VALUES(?,?,?,?) " +
+                            "ON CONFLICT(day) DO UPDATE SET orders=orders+excluded.orders, revenue=revenue+excluded.revenue, items=items+excluded.items")) {
+                for (Map.Entry<String, double[]> e : daily.entrySet()) upsert(ps, 1, e.getKey(), e.getValue());
+                ps.executeBatch();
+            }
+            try (PreparedStatement ps = c.prepareStatement(
+                    "INSERT INTO sales_monthly(month,orders,revenue,items) VALUES(?,?,?,?) " +
+                            "ON CONFLICT(month) DO UPDATE SET orders=orders+excluded.orders, revenue=revenue+excluded.revenue, items=items+excluded.items")) {
+                for (Map.Entry<String, double[]> e : monthly.entrySet()) upsert(ps, 1, e.getKey(), e.getValue());
+                ps.executeBatch();
+            }
+            try (PreparedStatement ps = c.prepareStatement(
+                    "INSERT INTO sales_cashier_daily(cashier_id,day,orders,revenue,items) VALUES(?,?,?,?,?) " +
+                            "ON CONFLICT(cashier_id,day) DO UPDATE SET orders=orders+excluded.orders, revenue=revenue+excluded.revenue, items=items+excluded.items")) {
+                for (Map.Entry<CashierDay, double[]> e : cashierDaily.entrySet()) {
+                    ps.setInt(1, e.getKey().cashierId());
+                    upsert(ps, 2, e.getKey().day(), e.getValue());
+                }
+                ps.executeBatch();
+            }
+            daily.clear();
+            monthly.clear();
+            cashierDaily.clear();
+        }
+
+        private static void upsert(PreparedStatement ps, int first, String key, double[] sums) throws SQLException {
+            ps.setString(first, key);
+            ps.setInt(first + 1, (int) sums[0]);
+            ps.setDouble(first + 2, sums[1]);
+            ps.setInt(first + 3, (int) sums[2]);
+            ps.addBatch();
+        }
+    }
+
+    public static void rebuild() throws SQLException {
+        try (Connection c = Database.get()) {
+            c.setAutoCommit(false);
+            try (Statement st = c.createStatement()) {
+                st.executeUpdate("DELETE FROM sales_daily");
+                st.executeUpdate("DELETE FROM sales_monthly");
+                st.executeUpdate("DELETE FROM sales_cashier_daily");
+                st.executeUpdate("INSERT INTO sales_cashier_daily(cashier_id,day,orders,revenue,items) " +
+                        "SELECT o.cashier_id, substr(o.created_at,1,10), COUNT(*), SUM(o.total), SUM(COALESCE(i.items,0)) " +
+                        "FROM orders o LEFT JOIN (SELECT order_id, SUM(quantity) AS items FROM order_items GROUP BY order_id) i ON i.order_id=o.id " +
+                        "WHERE o.cashier_id IS NOT NULL GROUP BY o.cashier_id, substr(o.created_at,1,10)");
+                st.executeUpdate("INSERT INTO sales_daily(day,orders,revenue,items) " +
+                        "SELECT substr(o.created_at,1,10), COUNT(*), SUM(o.total), SUM(COALESCE(i.items,0)) " +
+                        "FROM orders o LEFT JOIN (SELECT order_id, SUM(quantity) AS items FROM order_items GROUP BY order_id) i ON i.order_id=o.id " +
+                        "GROUP BY substr(o.created_at,1,10)");
+                st.executeUpdate("INSERT INTO sales_monthly(month,orders,revenue,items) " +
+                        "SELECT substr(day,1,7), SUM(orders), SUM(revenue), SUM(items) FROM sales_daily GROUP BY substr(day,1,7)");
+                c.commit();
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
+        }
+    }
+
+    static boolean needsRebuild(Statement st) throws SQLException {
+        try (ResultSet rs = st.executeQuery("SELECT EXISTS(SELECT 1 FROM orders) AND NOT EXISTS(SELECT 1 FROM sales_daily)")) {
+            return rs.next() && rs.getInt(1) == 1;
+        }
+    }
+
+    public static void main(String[] args) throws SQLException {
+        Database.init();
+        rebuild();
+        System.out.println("Sales rollups rebuilt");
+    }
+}
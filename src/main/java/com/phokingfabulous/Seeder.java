@@ -0,0 +1,241 @@
+package com.phokingfabulous;
+
+import java.sql.*;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Fills the database named by {@code phoking.db} with a synthetic shop: a menu, cashiers with
+ * employee records, and {@code days} of orders up to yesterday. Order volume follows a daily
+ * profile with lunch and dinner peaks and busier weekends, and items are drawn from a Zipf
+ * distribution so a handful of items dominate sales, as they do at a real counter. Rows go in
+ * through batched prepared statements in large transactions, then the rollups are rebuilt once.
+ *
+ * <pre>gradle seedData -Dphoking.db=big.db -Dphoking.seed.orders=1000000</pre>
+ */
+public class Seeder {
+    private static final int ORDERS = Integer.getInteger("phoking.seed.orders", 100_000);
+    private static final int DAYS = Integer.getInteger("phoking.seed.days", 365);
+    private static final int ITEMS = Integer.getInteger("phoking.seed.items", 60);
+    private static final int CASHIERS = Integer.getInteger("phoking.seed.cashiers", 12);
+    private static final double ITEM_SKEW = Double.parseDouble(System.getProperty("phoking.seed.itemSkew", "1.1"));
+    private static final double PEAK = Double.parseDouble(System.getProperty("phoking.seed.peak", "4"));
+    private static final double WEEKEND = Double.parseDouble(System.getProperty("phoking.seed.weekend", "1.4"));
+    private static final long RANDOM_SEED = Long.getLong("phoking.seed.random", 42);
+    static final String PASSWORD = System.getProperty("phoking.seed.password", "cashier");
+    private static final int BATCH = 20_000;
+
+    private static final String[] DISHES = {"Burger", "Cheeseburger", "Chicken Sandwich", "Fries", "Onion Rings",
+            "Spaghetti", "Fried Chicken", "Rice Meal", "Hotdog", "Nachos", "Siomai", "Lumpia", "Pancit", "Halo-Halo",
+            "Iced Tea", "Milk Tea", "Coffee", "Soda", "Shake", "Sundae"};
+    private static final String[] SIZES = {"", "Regular ", "Large ", "Family "};
+    private static final String[] FIRST = {"Maria", "Jose", "Ana", "Juan", "Carla", "Paolo", "Liza", "Mark", "Joy", "Ramon"};
+    private static final String[] LAST = {"Santos", "Reyes", "Cruz", "Bautista", "Garcia", "Mendoza", "Flores", "Aquino"};
+
+    /** Relative order volume for each hour of the day; the shop is closed outside 07:00-22:00. */
+    static double[] hourWeights(double peak) {
+        double[] w = new double[24];
+        for (int h = 7; h < 22; h++) w[h] = 1;
+        w[11] = w[13] = (1 + peak) / 2;
+        w[12] = peak;
+        w[18] = peak * 0.8;
+        w[17] = w[19] = (1 + peak * 0.8) / 2;
+        return w;
+    }
+
+    /** Cumulative Zipf weights over {@code n} ranks, for {@link #pick}. */
+    static double[] zipf(int n, double s) {
+        double[] cum = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += 1 / Math.pow(i + 1, s);
+            cum[i] = sum;
+        }
+        for (int i = 0; i < n; i++) cum[i] /= sum;
+        return cum;
+    }
+
+    static int pick(double[] cumulative, SplittableRandom rnd) {
+        int i = Arrays.binarySearch(cumulative, rnd.nextDouble());
+        return Math.min(cumulative.length - 1, i < 0 ? -i - 1 : i);
+    }
+
+    public static void main(String[] args) throws Exception {
+        long start = System.nanoTime();
+        Database.init();
+        SplittableRandom rnd = new SplittableRandom(RANDOM_SEED);
+        String hash = PasswordHasher.hash(PASSWORD);
+        try (Connection c = Database.get()) {
+            int[] items = seedMenu(c, rnd);
+            double[] prices = prices(c, items);
+            int[] cashiers = seedCashiers(c, hash, rnd);
+            seedOrders(c, items, prices, cashiers, rnd);
+            // The seeded orders are history; the stock levels above already stand after them.
+            StockLedger.adoptStoredStock(c);
+        }
+        Rollups.rebuild();
+        System.out.printf("Seeded %d items, %d cashiers, %d orders over %d days in %.1f s (cashier password: %s)%n",
+                ITEMS, CASHIERS, ORDERS, DAYS, (System.nanoTime() - start) / 1e9, PASSWORD);
+    }
+
+    private static int[] seedMenu(Connection c, SplittableRandom rnd) throws SQLException {
+        int[] ids = new int[ITEMS];
+        c.setAutoCommit(false);
+        try (PreparedStatement ps = c.prepareStatement(
+                "INSERT INTO menu_items(name,price,stock) VALUES(?,?,?)", Statement.RETURN_GENERATED_KEYS)) {
+            for (int i = 0; i < ITEMS; i++) {
+                String dish = DISHES[i % DISHES.length];
+                int size = (i / DISHES.length) % SIZES.length;
+                int round = i / (DISHES.length * SIZES.length);
+                ps.setString(1, SIZES[size] + dish + (round > 0 ? " " + (round + 1) : ""));
+                ps.setDouble(2, 25 + 5 * rnd.nextInt(20) + 20 * size);
+                ps.setInt(3, 1_000_000);
+                ps.executeUpdate();
+                ResultSet keys = ps.getGeneratedKeys();
+                keys.next();
+                ids[i] = keys.getInt(1);
+            }
+            c.commit();
+        } finally {
+            c.setAutoCommit(true);
+        }
+        return ids;
+    }
+
+    private static double[] prices(Connection c, int[] items) throws SQLException {
+        double[] prices = new double[items.length];
+        try (PreparedStatement ps = c.prepareStatement("SELECT price FROM menu_items WHERE id=?")) {
+            for (int i = 0; i < items.length; i++) {
+                ps.setInt(1, items[i]);
+                ResultSet rs = ps.executeQuery();
+                rs.next();
+                prices[i] = rs.getDouble(1);
+            }
+        }
+        return prices;
+    }
+
+    /** Cashier logins are {@code cashier1..N}; existing ones are reused so the seeder can run twice. */
+    private static int[] seedCashiers(Connection c, String hash, SplittableRandom rnd) throws SQLException {
+        int[] ids = new int[CASHIERS];
+        c.setAutoCommit(false);
+        try (PreparedStatement user = c.prepareStatement(
+                "INSERT INTO users(username,password_hash,role) VALUES(?,?,'cashier') ON CONFLICT(username) DO NOTHING");
+             PreparedStatement find = c.prepareStatement("SELECT id FROM users WHERE username=?");
+             PreparedStatement emp = c.prepareStatement(
+                     "INSERT INTO employees(user_id,first_name,last_name,weekly_payment) " +
+                             "SELECT ?,?,?,? WHERE NOT EXISTS(SELECT 1 FROM employees WHERE user_id=?)")) {
+            for (int i = 0; i < CASHIERS; i++) {
+                String username = "cashier" + (i + 1);
+                user.setString(1, username);
+                user.setString(2, hash);
+                user.executeUpdate();
+                find.setString(1, username);
+                ResultSet rs = find.executeQuery();
+                rs.next();
+                ids[i] = rs.getInt(1);
+                emp.setInt(1, ids[i]);
+                emp.setString(2, FIRST[rnd.nextInt(FIRST.length)]);
+                emp.setString(3, LAST[rnd.nextInt(LAST.length)]);
+                emp.setDouble(4, 3000 + 500 * rnd.nextInt(5));
+                emp.setInt(5, ids[i]);
+                emp.executeUpdate();
+            }
+            c.commit();
+        } finally {
+            c.setAutoCommit(true);
+        }
+        return ids;
+    }
+
+    private static void seedOrders(Connection c, int[] items, double[] prices, int[] cashiers, SplittableRandom rnd) throws SQLException {
+        double[] hours = hourWeights(PEAK);
+        double[] hourCum = new double[24];
+        double hourSum = 0;
+        for (int h = 0; h < 24; h++) hourCum[h] = hourSum += hours[h];
+        for (int h = 0; h < 24; h++) hourCum[h] /= hourSum;
+        double[] itemCum = zipf(items.length, ITEM_SKEW);
+
+        LocalDate first = LocalDate.now().minusDays(DAYS);
+        double[] dayWeight = new double[DAYS];
+        double daySum = 0;
+        for (int d = 0; d < DAYS; d++) {
+            int dow = first.plusDays(d).getDayOfWeek().getValue();
+            dayWeight[d] = (dow >= 6 ? WEEKEND : 1) * (0.85 + 0.3 * rnd.nextDouble());
+            daySum += dayWeight[d];
+        }
+
+        DateTimeFormatter iso = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
+        int written = 0;
+        double carried = 0;
+        c.setAutoCommit(false);
+        try (PreparedStatement order = c.prepareStatement(
+                "INSERT INTO orders(id,cashier_id,total,created_at,created_epoch) VALUES(?,?,?,?,?)");
+             PreparedStatement line = c.prepareStatement(
+                     "INSERT INTO order_items(order_id,menu_item_id,quantity,price) VALUES(?,?,?,?)");
+             Statement st = c.createStatement()) {
+            int nextId;
+            try (ResultSet rs = st.executeQuery("SELECT COALESCE(MAX(id),0) + 1 FROM orders")) {
+                rs.next();
+                nextId = rs.getInt(1);
+            }
+            int pending = 0;
+            for (int d = 0; d < DAYS; d++) {
+                carried += ORDERS * dayWeight[d] / daySum;
+                int today = d == DAYS - 1 ? ORDERS - written : (int) Math.round(carried) - written;
+                int[] seconds = new int[Math.max(0, today)];
+                for (int i = 0; i < seconds.length; i++) seconds[i] = pick(hourCum, rnd) * 3600 + rnd.nextInt(3600);
+                Arrays.sort(seconds);
+                LocalDateTime midnight = first.plusDays(d).atStartOfDay();
+                List<int[]> lines = new ArrayList<>();
+                for (int sec : seconds) {
+                    LocalDateTime at = midnight.plusSeconds(sec);
+                    lines.clear();
+                    int count = 1 + Math.min(4, (int) (-Math.log(1 - rnd.nextDouble()) * 1.2));
+                    double total = 0;
+                    for (int k = 0; k < count; k++) {
+                        int item = pick(itemCum, rnd);
+                        int qty = rnd.nextInt(10) < 7 ? 1 : 2 + rnd.nextInt(2);
+                        lines.add(new int[]{item, qty});
+                        total += prices[item] * qty;
+                    }
+                    int id = nextId++;
+                    order.setInt(1, id);
+                    order.setInt(2, cashiers[rnd.nextInt(cashiers.length)]);
+                    order.setDouble(3, total);
+                    order.setString(4, at.format(iso));
+                    order.setLong(5, Database.epochSecond(at));
+                    order.addBatch();
+                    for (int[] l : lines) {
+                        line.setInt(1, id);
+                        line.setInt(2, items[l[0]]);
+                        line.setInt(3, l[1]);
+                        line.setDouble(4, prices[l[0]]);
+                        line.addBatch();
+                    }
+                    written++;
+                    if (++pending == BATCH) {
+                        order.executeBatch();
+                        line.executeBatch();
+                        c.commit();
+                        pending = 0;
+                        System.out.printf("  %d / %d orders%n", written, ORDERS);
+                    }
+                }
+            }
+            order.executeBatch();
+            line.executeBatch();
+            c.commit();
+        } catch (SQLException e) {
+            c.rollback();
+            throw e;
+        } finally {
+            c.setAutoCommit(true);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.phokingfabulous;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Login sessions keyed by bearer token. A session ends after {@code phoking.sessions.idleMinutes}
+ * without use or {@code phoking.sessions.maxHours} after login, whichever comes first; a daemon
+ * thread sweeps expired ones and the least recently used are dropped once the store is full.
+ * When {@code phoking.sessions.file} is set the sessions survive a restart.
+ */
+public class SessionStore {
+    private static final long IDLE_MS = TimeUnit.MINUTES.toMillis(Long.getLong("phoking.sessions.idleMinutes", 30));
+    private static final long ABSOLUTE_MS = TimeUnit.HOURS.toMillis(Long.getLong("phoking.sessions.maxHours", 12));
+    private static final int MAX_SESSIONS = Integer.getInteger("phoking.sessions.max", 10_000);
+    private static final long SWEEP_SECONDS = Long.getLong("phoking.sessions.sweepSeconds", 60);
+    private static final long TOUCH_MS = 1000;
+    private static final String FILE = System.getProperty("phoking.sessions.file");
+
+    private static final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private static final AtomicLong created = new AtomicLong();
+    private static final AtomicLong expired = new AtomicLong();
+    private static final AtomicLong evicted = new AtomicLong();
+    private static volatile boolean dirty;
+    private static ScheduledExecutorService sweeper;
+
+    private static final class Session {
+        final int userId;
+        final long createdAt;
+        volatile long lastSeen;
+
+        Session(int userId, long createdAt, long lastSeen) {
+            this.userId = userId;
+            this.createdAt = createdAt;
+            this.lastSeen = lastSeen;
+        }
+
+        boolean expired(long now) {
+            return now - lastSeen > IDLE_MS || now - createdAt > ABSOLUTE_MS;
+        }
+    }
+
+    public static synchronized void start() {
+        if (sweeper != null) return;
+        if (FILE != null) load(Paths.get(FILE));
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "session-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleWithFixedDelay(SessionStore::sweep, SWEEP_SECONDS, SWEEP_SECONDS, TimeUnit.SECONDS);
+        if (FILE != null) Runtime.getRuntime().addShutdownHook(new Thread(SessionStore::save, "session-snapshot"));
+    }
+
+    public static String create(int userId) {
+        long now = System.currentTimeMillis();
+        String token = UUID.randomUUID().toString();
+        sessions.put(token, new Session(userId, now, now));
+        created.incrementAndGet();
+        dirty = true;
+        if (sessions.size() > MAX_SESSIONS) trim(now);
+        return token;
+    }
+
+    /** User id behind {@code token}, or null when it is unknown or has expired. */
+    public static Integer lookup(String token) {
+        Session s = sessions.get(token);
+        if (s == null) return null;
+        long now = System.currentTimeMillis();
+        if (s.expired(now)) {
+            if (sessions.remove(token, s)) expired.incrementAndGet();
+            return null;
+        }
+        if (now - s.lastSeen > TOUCH_MS) s.lastSeen = now;
+        return s.userId;
+    }
+
+    public static boolean remove(String token) {
+        boolean removed = sessions.remove(token) != null;
+        if (removed) dirty = true;
+        return removed;
+    }
+
+    public static Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("active", sessions.size());
+        m.put("max_size", MAX_SESSIONS);
+        m.put("created", created.get());
+        m.put("expired", expired.get());
+        m.put("evicted", evicted.get());
+        return m;
+    }
+
+    static void sweep() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Session> e : sessions.entrySet()) {
+            if (e.getValue().expired(now) && sessions.remove(e.getKey(), e.getValue())) {
+                expired.incrementAndGet();
+                dirty = true;
+            }
+        }
+        trim(now);
+        if (FILE != null && dirty) save();
+    }
+
+    private static synchronized void trim(long now) {
+        int over = sessions.size() - MAX_SESSIONS;
+        if (over <= 0) return;
+        sessions.entrySet().stream()
+                .sorted((a, b) -> Long.compare(a.getValue().lastSeen, b.getValue().lastSeen))
+                .limit(over)
+                .forEach(e -> {
+                    if (sessions.remove(e.getKey(), e.getValue())) evicted.incrementAndGet();
+                });
+        dirty = true;
+    }
+
+    /** Writes every live session to a temp file and renames it over the snapshot. */
+    static synchronized void save() {
+        Path file = Paths.get(FILE);
+        dirty = false;
+        try {
+            Path dir = file.toAbsolutePath().getParent();
+            Files.createDirectories(dir);
+            Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+            try {
+                Files.setPosixFilePermissions(tmp, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException ignored) {
+            }
+            long now = System.currentTimeMillis();
+            try (BufferedWriter w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Session> e : sessions.entrySet()) {
+                    Session s = e.getValue();
+                    if (s.expired(now)) continue;
+                    w.write(e.getKey() + " " + s.userId + " " + s.createdAt + " " + s.lastSeen);
+                    w.newLine();
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            dirty = true;
+            System.err.println("Session snapshot failed: " + e.getMessage());
+        }
+    }
+
+    private static void load(Path file) {
+        if (!Files.exists(file)) return;
+        long now = System.currentTimeMillis();
+        try (BufferedReader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                String[] f = line.split(" ");
+                if (f.length != 4) continue;
+                Session s = new Session(Integer.parseInt(f[1]), Long.parseLong(f[2]), Long.parseLong(f[3]));
+                if (!s.expired(now)) sessions.put(f[0], s);
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Session snapshot ignored: " + e.getMessage());
+        }
+        trim(now);
+        dirty = false;
+    }
+}
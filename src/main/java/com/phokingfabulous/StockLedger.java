@@ -0,0 +1,289 @@
+package com.phokingfabulous;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Stock that checkout is allowed to sell, held in memory and authoritative while the server
+ * runs. Each item has one {@code long} slot, indexed by id in pages of an AtomicLongArray, that
+ * packs the units still available with the units reserved by checkouts in flight. Reserving,
+ * committing, releasing and restocking are each a single compare-and-set on that slot, so no
+ * checkout takes a lock or reads the disk to find out whether it fits, and two checkouts can
+ * never both take the last unit.
+ *
+ * Orders no longer touch {@code menu_items.stock}. A background thread applies the quantities
+ * of orders committed since {@code stock_sync.order_id} every {@code phoking.stock.flushMs} and
+ * advances that mark in the same transaction. The stored stock is therefore always "as of" a
+ * known order, and a crash loses nothing: the next start applies whatever was not flushed.
+ */
+public class StockLedger {
+    private static final int PAGE_BITS = 10;
+    private static final int PAGE = 1 << PAGE_BITS;
+    private static final int ABSENT = Integer.MIN_VALUE;
+    private static final long FLUSH_MS = Long.getLong("phoking.stock.flushMs", 1000);
+
+    private static volatile AtomicLongArray[] pages = new AtomicLongArray[0];
+    private static final AtomicLong reservations = new AtomicLong();
+    private static final AtomicLong shortRejections = new AtomicLong();
+    private static final AtomicLong releases = new AtomicLong();
+    private static final AtomicLong flushes = new AtomicLong();
+    private static final AtomicLong flushedOrders = new AtomicLong();
+    private static final AtomicLong flushFailures = new AtomicLong();
+    private static ScheduledExecutorService flusher;
+
+    /** Units of one order held back from sale until its transaction commits or fails. */
+    public static final class Reservation {
+        private final int[] ids;
+        private final int[] quantities;
+        private final AtomicBoolean settled = new AtomicBoolean();
+
+        private Reservation(int[] ids, int[] quantities) {
+            this.ids = ids;
+            this.quantities = quantities;
+        }
+
+        /** The order is stored; its units stop counting as reserved and are gone for good. */
+        public void commit() {
+            if (!settled.compareAndSet(false, true)) return;
+            for (int i = 0; i < ids.length; i++) update(ids[i], 0, -quantities[i]);
+        }
+
+        /** The order failed; its units go back on sale. */
+        public void release() {
+            if (!settled.compareAndSet(false, true)) return;
+            for (int i = 0; i < ids.length; i++) update(ids[i], quantities[i], -quantities[i]);
+            releases.incrementAndGet();
+        }
+    }
+
+    /** Applies unflushed sales, loads every item and starts the write-behind thread. */
+    public static synchronized void start() throws SQLException {
+        if (flusher != null) return;
+        flush();
+        try (Connection c = Database.get(); Statement st = c.createStatement()) {
+            ResultSet rs = st.executeQuery("SELECT id, stock FROM menu_items");
+            while (rs.next()) set(rs.getInt(1), rs.getInt(2));
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "stock-writer");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(() -> {
+            try {
+                flush();
+            } catch (SQLException e) {
+                flushFailures.incrementAndGet();
+            }
+        }, FLUSH_MS, FLUSH_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Takes every line of an order out of stock or none of them. Unknown items are reported
+     * before any stock is touched; otherwise each line is taken in turn and, if any falls short,
+     * the ones already taken are handed back and all the short lines are reported.
+     */
+    public static Reservation reserve(List<Checkout.Line> lines) throws Checkout.Rejected {
+        List<Integer> missing = new ArrayList<>();
+        for (Checkout.Line line : lines) if (available(line.itemId) == ABSENT) missing.add(line.itemId);
+        if (!missing.isEmpty()) throw new Checkout.Rejected("item_not_found", missing);
+
+        int[] ids = new int[lines.size()];
+        int[] quantities = new int[lines.size()];
+        boolean[] taken = new boolean[lines.size()];
+        List<Integer> shortItems = new ArrayList<>();
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = lines.get(i).itemId;
+            quantities[i] = lines.get(i).quantity;
+            taken[i] = take(ids[i], quantities[i]);
+            if (!taken[i]) shortItems.add(ids[i]);
+        }
+        if (!shortItems.isEmpty()) {
+            for (int i = 0; i < ids.length; i++) if (taken[i]) update(ids[i], quantities[i], -quantities[i]);
+            shortRejections.incrementAndGet();
+            throw new Checkout.Rejected("insufficient_stock", shortItems);
+        }
+        reservations.incrementAndGet();
+        return new Reservation(ids, quantities);
+    }
+
+    /** Units of {@code id} on sale right now, or {@code fallback} for an item the ledger does not hold. */
+    public static int available(int id, int fallback) {
+        int v = available(id);
+        return v == ABSENT ? fallback : v;
+    }
+
+    /**
+     * Records a counted stock level, as from a restock or a new item. Units reserved by orders in
+     * flight are kept apart, so the count is what is on the shelf before those orders leave.
+     */
+    public static void set(int id, int stock) {
+        AtomicLongArray p = page(id, true);
+        int i = id & (PAGE - 1);
+        long v;
+        do {
+            v = p.get(i);
+        } while (!p.compareAndSet(i, v, pack(stock - reserved(v), reserved(v))));
+    }
+
+    public static void remove(int id) {
+        AtomicLongArray p = page(id, false);
+        if (p == null) return;
+        int i = id & (PAGE - 1);
+        long v;
+        do {
+            v = p.get(i);
+        } while (!p.compareAndSet(i, v, pack(ABSENT, reserved(v))));
+    }
+
+    /** Applies the orders committed since the last flush to menu_items.stock in its own transaction. */
+    public static void flush() throws SQLException {
+        try (Connection c = Database.get()) {
+            c.setAutoCommit(false);
+            try {
+                flush(c);
+                c.commit();
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
+        }
+    }
+
+    /** As {@link #flush()}, inside the caller's write transaction, e.g. before overwriting an item's stock. */
+    public static void flush(Connection c) throws SQLException {
+        long from;
+        long to;
+        try (Statement st = c.createStatement()) {
+            ResultSet rs = st.executeQuery("SELECT (SELECT order_id FROM stock_sync), (SELECT COALESCE(MAX(id), 0) FROM orders)");
+            rs.next();
+            from = rs.getLong(1);
+            to = rs.getLong(2);
+        }
+        if (to <= from) return;
+        try (PreparedStatement ps = c.prepareStatement(
+                "WITH sold AS (SELECT menu_item_id AS id, SUM(quantity) AS q FROM order_items " +
+                        "WHERE order_id > ? AND order_id <= ? GROUP BY menu_item_id) " +
+                        "UPDATE menu_items SET stock = stock - sold.q FROM sold WHERE menu_items.id = sold.id")) {
+            ps.setLong(1, from);
+            ps.setLong(2, to);
+            ps.executeUpdate();
+        }
+        try (PreparedStatement ps = c.prepareStatement("UPDATE stock_sync SET order_id = ?")) {
+            ps.setLong(1, to);
+            ps.executeUpdate();
+        }
+        flushes.incrementAndGet();
+        flushedOrders.addAndGet(to - from);
+    }
+
+    /**
+     * Declares menu_items.stock already net of every order on file, for tools such as Seeder that
+     * insert past orders directly and set stock themselves.
+     */
+    public static void adoptStoredStock(Connection c) throws SQLException {
+        try (Statement st = c.createStatement()) {
+            st.executeUpdate("UPDATE stock_sync SET order_id = (SELECT COALESCE(MAX(id), 0) FROM orders)");
+        }
+    }
+
+    public static Map<String, Object> stats() {
+        int items = 0;
+        long reserved = 0;
+        for (AtomicLongArray p : pages) {
+            if (p == null) continue;
+            for (int i = 0; i < PAGE; i++) {
+                long v = p.get(i);
+                if (available(v) != ABSENT) items++;
+                reserved += reserved(v);
+            }
+        }
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("items", items);
+        m.put("units_reserved", reserved);
+        m.put("reservations", reservations.get());
+        m.put("insufficient_stock", shortRejections.get());
+        m.put("releases", releases.get());
+        m.put("flushes", flushes.get());
+        m.put("flushed_orders", flushedOrders.get());
+        m.put("flush_failures", flushFailures.get());
+        return m;
+    }
+
+    private static boolean take(int id, int quantity) {
+        AtomicLongArray p = page(id, false);
+        if (p == null) return false;
+        int i = id & (PAGE - 1);
+        while (true) {
+            long v = p.get(i);
+            int avail = available(v);
+            if (avail == ABSENT || avail < quantity) return false;
+            if (p.compareAndSet(i, v, pack(avail - quantity, reserved(v) + quantity))) return true;
+        }
+    }
+
+    /** Adds to both halves of an item's slot; units returned to a removed item are dropped. */
+    private static void update(int id, int availableDelta, int reservedDelta) {
+        AtomicLongArray p = page(id, false);
+        if (p == null) return;
+        int i = id & (PAGE - 1);
+        long v;
+        long next;
+        do {
+            v = p.get(i);
+            int avail = available(v);
+            next = pack(avail == ABSENT ? ABSENT : avail + availableDelta, reserved(v) + reservedDelta);
+        } while (!p.compareAndSet(i, v, next));
+    }
+
+    private static int available(int id) {
+        AtomicLongArray p = page(id, false);
+        return p == null ? ABSENT : available(p.get(id & (PAGE - 1)));
+    }
+
+    private static AtomicLongArray page(int id, boolean create) {
+        if (id < 0) return null;
+        int n = id >>> PAGE_BITS;
+        AtomicLongArray[] known = pages;
+        if (n < known.length && known[n] != null) return known[n];
+        if (!create) return null;
+        synchronized (StockLedger.class) {
+            known = pages;
+            if (n < known.length && known[n] != null) return known[n];
+            // Only the array of page references is copied; live pages are shared, so no update is lost.
+            AtomicLongArray[] grown = java.util.Arrays.copyOf(known, Math.max(known.length, n + 1));
+            AtomicLongArray p = new AtomicLongArray(PAGE);
+            for (int i = 0; i < PAGE; i++) p.set(i, pack(ABSENT, 0));
+            grown[n] = p;
+            pages = grown;
+            return p;
+        }
+    }
+
+    private static long pack(int available, int reserved) {
+        return ((long) available << 32) | (reserved & 0xFFFFFFFFL);
+    }
+
+    private static int available(long v) {
+        return (int) (v >> 32);
+    }
+
+    private static int reserved(long v) {
+        return (int) v;
+    }
+}
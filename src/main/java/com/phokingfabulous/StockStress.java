@@ -0,0 +1,129 @@
+package com.phokingfabulous;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks that checkout cannot oversell. Adds a few items with {@code stock} units each, then has
+ * {@code threads} terminals buy them through StockLedger and OrderWriter, as /orders does, until
+ * nothing is left. Orders take one or two items at once so all-or-nothing reservations collide,
+ * and some reservations are dropped as if payment failed. Afterwards every item must have sold
+ * exactly its stock, in memory and on disk.
+ *
+ * <pre>gradle stockStress -Dphoking.db=/tmp/stress.db -Dphoking.stress.threads=200</pre>
+ *
+ * It writes real orders, so point it at a scratch database.
+ */
+public class StockStress {
+    private static final int ITEMS = Integer.getInteger("phoking.stress.items", 4);
+    private static final int STOCK = Integer.getInteger("phoking.stress.stock", 500);
+    private static final int THREADS = Integer.getInteger("phoking.stress.threads", 64);
+
+    public static void main(String[] args) throws Exception {
+        Database.init();
+        StockLedger.start();
+        OrderWriter.start();
+
+        int[] ids = new int[ITEMS];
+        try (Connection c = Database.get(); PreparedStatement ps = c.prepareStatement(
+                "INSERT INTO menu_items(name,price,stock) VALUES(?,?,?)", Statement.RETURN_GENERATED_KEYS)) {
+            for (int i = 0; i < ITEMS; i++) {
+                ps.setString(1, "Stress " + (i + 1));
+                ps.setDouble(2, 10);
+                ps.setInt(3, STOCK);
+                ps.executeUpdate();
+                ResultSet keys = ps.getGeneratedKeys();
+                keys.next();
+                ids[i] = keys.getInt(1);
+                StockLedger.set(ids[i], STOCK);
+            }
+        }
+
+        AtomicLong[] bought = new AtomicLong[ITEMS];
+        for (int i = 0; i < ITEMS; i++) bought[i] = new AtomicLong();
+        AtomicLong orders = new AtomicLong();
+        AtomicLong refused = new AtomicLong();
+        AtomicLong abandoned = new AtomicLong();
+        AtomicLong inFlight = new AtomicLong();
+        long start = System.nanoTime();
+        List<Thread> terminals = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            terminals.add(Thread.ofPlatform().name("terminal-" + t).start(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                // Units held by an order still in flight may come back, so nobody stops until those settle too.
+                while (remaining(ids) > 0 || inFlight.get() > 0) {
+                    if (remaining(ids) == 0) {
+                        Thread.yield();
+                        continue;
+                    }
+                    Json.OrderRequest order = new Json.OrderRequest();
+                    int first = rnd.nextInt(ITEMS);
+                    order.items.add(new Checkout.Line(ids[first], 1 + rnd.nextInt(2)));
+                    if (ITEMS > 1 && rnd.nextInt(3) == 0) order.items.add(new Checkout.Line(ids[(first + 1 + rnd.nextInt(ITEMS - 1)) % ITEMS], 1));
+                    order.payment = 100;
+                    inFlight.incrementAndGet();
+                    try {
+                        List<Checkout.Line> lines = Checkout.lines(order.items);
+                        StockLedger.Reservation stock = StockLedger.reserve(lines);
+                        if (rnd.nextInt(10) == 0) {
+                            stock.release();
+                            abandoned.incrementAndGet();
+                            continue;
+                        }
+                        try {
+                            OrderWriter.place(1, order, lines, LocalDateTime.now(), stock);
+                        } finally {
+                            stock.release();
+                        }
+                        for (Checkout.Line line : lines) {
+                            for (int i = 0; i < ITEMS; i++) if (ids[i] == line.itemId) bought[i].addAndGet(line.quantity);
+                        }
+                        orders.incrementAndGet();
+                    } catch (Checkout.Rejected e) {
+                        refused.incrementAndGet();
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    } finally {
+                        inFlight.decrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (Thread t : terminals) t.join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        StockLedger.flush();
+
+        boolean ok = true;
+        try (Connection c = Database.get(); PreparedStatement ps = c.prepareStatement(
+                "SELECT stock, (SELECT COALESCE(SUM(quantity), 0) FROM order_items WHERE menu_item_id = m.id) FROM menu_items m WHERE id=?")) {
+            for (int i = 0; i < ITEMS; i++) {
+                ps.setInt(1, ids[i]);
+                ResultSet rs = ps.executeQuery();
+                rs.next();
+                int stored = rs.getInt(1);
+                long sold = rs.getLong(2);
+                int left = StockLedger.available(ids[i], Integer.MIN_VALUE);
+                boolean good = sold == STOCK && bought[i].get() == STOCK && stored == 0 && left == 0;
+                ok &= good;
+                System.out.printf("item %d: stock %d, sold %d (terminals counted %d), stored %d, ledger %d %s%n",
+                        ids[i], STOCK, sold, bought[i].get(), stored, left, good ? "ok" : "WRONG");
+            }
+        }
+        System.out.printf("%d terminals: %d orders, %d refused, %d abandoned in %.2f s; %s%n",
+                THREADS, orders.get(), refused.get(), abandoned.get(), seconds, StockLedger.stats());
+        if (!ok) System.exit(1);
+    }
+
+    private static int remaining(int[] ids) {
+        int n = 0;
+        for (int id : ids) n += StockLedger.available(id, 0);
+        return n;
+    }
+}
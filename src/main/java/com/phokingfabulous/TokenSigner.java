@@ -0,0 +1,120 @@
+package com.phokingfabulous;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Self-contained session tokens, {@code kid.payload.signature}, where the payload carries the
+ * user id, role and expiry and the signature is HMAC-SHA256 under the key named by {@code kid}.
+ * Any node holding the same {@code phoking.token.keys} can verify them without shared state.
+ * The first key signs; the others are still accepted, so a key can be rotated out by moving it
+ * down the list and removing it once the old tokens have expired.
+ */
+public class TokenSigner {
+    private static final int IDLE_MACS = Integer.getInteger("phoking.token.idleMacs", 64);
+    private static final long TTL_SECONDS = TimeUnit.MINUTES.toSeconds(Long.getLong("phoking.token.ttlMinutes", 12 * 60));
+    private static final Base64.Encoder B64 = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder B64D = Base64.getUrlDecoder();
+    private static final Map<String, Key> keys = new LinkedHashMap<>();
+    private static final Key signing;
+
+    public record Claims(int userId, String role, long expires) {
+    }
+
+    /**
+     * A key and its idle Macs. Request threads are virtual and short-lived under
+     * {@code phoking.server.threads=virtual}, so a per-thread Mac would be built and keyed again
+     * for every request; instead each call borrows an initialised Mac and hands it back.
+     */
+    private static final class Key {
+        final String kid;
+        final SecretKeySpec spec;
+        final BlockingQueue<Mac> idle = new ArrayBlockingQueue<>(IDLE_MACS);
+
+        Key(String kid, byte[] secret) {
+            this.kid = kid;
+            this.spec = new SecretKeySpec(secret, "HmacSHA256");
+            idle.offer(create());
+        }
+
+        Mac create() {
+            try {
+                Mac m = Mac.getInstance("HmacSHA256");
+                m.init(spec);
+                return m;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        byte[] sign(String data) {
+            Mac m = idle.poll();
+            if (m == null) m = create();
+            try {
+                return m.doFinal(data.getBytes(StandardCharsets.US_ASCII));
+            } finally {
+                idle.offer(m); // doFinal leaves it reset; dropped if enough are already idle
+            }
+        }
+    }
+
+    static {
+        String spec = System.getProperty("phoking.token.keys");
+        if (spec == null || spec.isBlank()) {
+            byte[] secret = new byte[32];
+            new SecureRandom().nextBytes(secret);
+            keys.put("local", new Key("local", secret));
+            System.err.println("phoking.token.keys not set; signed tokens are only valid on this node until it restarts");
+        } else {
+            for (String entry : spec.split(",")) {
+                int colon = entry.indexOf(':');
+                if (colon <= 0) throw new IllegalArgumentException("phoking.token.keys entries must be kid:base64secret");
+                String kid = entry.substring(0, colon).trim();
+                byte[] secret = Base64.getDecoder().decode(entry.substring(colon + 1).trim());
+                if (secret.length < 32) throw new IllegalArgumentException("token key " + kid + " is shorter than 256 bits");
+                keys.put(kid, new Key(kid, secret));
+            }
+        }
+        signing = keys.values().iterator().next();
+    }
+
+    public static String sign(int userId, String role) {
+        long exp = System.currentTimeMillis() / 1000 + TTL_SECONDS;
+        String payload = B64.encodeToString((userId + "|" + role + "|" + exp).getBytes(StandardCharsets.UTF_8));
+        String body = signing.kid + "." + payload;
+        return body + "." + B64.encodeToString(signing.sign(body));
+    }
+
+    /** Claims of a well-formed, correctly signed and unexpired token, otherwise null. */
+    public static Claims verify(String token) {
+        int first = token.indexOf('.');
+        int last = token.lastIndexOf('.');
+        if (first <= 0 || last == first) return null;
+        Key key = keys.get(token.substring(0, first));
+        if (key == null) return null;
+        try {
+            byte[] sig = B64D.decode(token.substring(last + 1));
+            String body = token.substring(0, last);
+            if (!MessageDigest.isEqual(sig, key.sign(body))) return null;
+            String payload = new String(B64D.decode(token.substring(first + 1, last)), StandardCharsets.UTF_8);
+            int a = payload.indexOf('|');
+            int b = payload.lastIndexOf('|');
+            if (a < 0 || b == a) return null;
+            long exp = Long.parseLong(payload.substring(b + 1));
+            if (exp < System.currentTimeMillis() / 1000) return null;
+            return new Claims(Integer.parseInt(payload.substring(0, a)), payload.substring(a + 1, b), exp);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.phokingfabulous;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPoolBudget;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Jetty thread pool that gives every request its own virtual thread. Jetty's selector and
+ * acceptor loops never return, so they keep dedicated platform threads; everything else is
+ * short-lived work that may block on SQLite or BCrypt and is cheap to park.
+ *
+ * The loops are told apart through Jetty's thread budget: a connector and its selector manager
+ * each lease the threads their loops will hold just before starting them, and nothing else is
+ * executed in between, so the next that many tasks are the loops.
+ */
+public class VirtualThreadPool extends AbstractLifeCycle implements ThreadPool.SizedThreadPool {
+    private final ThreadFactory virtual = Thread.ofVirtual().name("http-v-", 0).factory();
+    private final ThreadFactory platform = Thread.ofPlatform().name("http-io-", 0).factory();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger loopsToStart = new AtomicInteger();
+    private final ThreadPoolBudget budget = new ThreadPoolBudget(this) {
+        @Override
+        public Lease leaseTo(Object leasee, int threads) {
+            loopsToStart.addAndGet(threads);
+            return super.leaseTo(leasee, threads);
+        }
+    };
+    private volatile CountDownLatch stopped = new CountDownLatch(1);
+
+    @Override
+    public void execute(Runnable task) {
+        Runnable counted = () -> {
+            running.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                running.decrementAndGet();
+            }
+        };
+        boolean loop = loopsToStart.getAndUpdate(n -> Math.max(0, n - 1)) > 0;
+        (loop ? platform : virtual).newThread(counted).start();
+    }
+
+    @Override
+    public ThreadPoolBudget getThreadPoolBudget() {
+        return budget;
+    }
+
+    @Override
+    protected void doStart() {
+        loopsToStart.set(0);
+        stopped = new CountDownLatch(1);
+    }
+
+    @Override
+    protected void doStop() {
+        stopped.countDown();
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        stopped.await();
+    }
+
+    @Override
+    public int getThreads() {
+        return running.get();
+    }
+
+    // There is no bound to size: every task gets a fresh virtual thread.
+    @Override
+    public int getMinThreads() {
+        return 0;
+    }
+
+    @Override
+    public int getMaxThreads() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public void setMinThreads(int threads) {
+    }
+
+    @Override
+    public void setMaxThreads(int threads) {
+    }
+
+    @Override
+    public int getIdleThreads() {
+        return 0;
+    }
+
+    @Override
+    public boolean isLowOnThreads() {
+        return false;
+    }
+}